@@ -0,0 +1,614 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Benchmarks of whole Gitlet commands, invoked as follows:
+ *      java gitlet.Bench NAME ARGS...
+ *  Each benchmark builds a synthetic repository in a fresh temporary
+ *  directory by running gitlet.Main in child processes, since Gitlet
+ *  works on the current directory of the JVM, and prints what it measured.
+ *  The benchmarks are:
+ *      pack-delta [MB [EDITS]]
+ *          Commits a text file of MB megabytes (default 10) edited EDITS
+ *          times (default 1000), one line per edit, and reports the size
+ *          of .gitlet and the latency of checking out old and new
+ *          versions of the file, before and after running pack.
+ *      codec [FILES [ITERATIONS]]
+ *          Encodes a commit tracking FILES files (default 100) with Java
+ *          serialization, and as a commit and a tree holding the files,
+ *          and reports the size of each and the time to decode it,
+ *          averaged over ITERATIONS decodes (default 100000) after as many
+ *          warm-up decodes. This one runs in process.
+ *      merge-base [COMMITS]
+ *          Builds two branches of COMMITS commits each (default 2000) on
+ *          a trunk as long, crossed by two merges, and times finding their
+ *          split point by comparing ancestor lists and on the commit graph.
+ *      tree-walk [FILES [DIRS [CHANGED]]]
+ *          Builds a working tree of FILES files (default 100000) in DIRS
+ *          directories (default 5000) and times listing it with a plain
+ *          Files.walkFileTree, with a WorkingTree and no directory cache,
+ *          with the cache filled, and after adding a file to CHANGED
+ *          directories (default 50), with the directories listed or
+ *          served by the cache.
+ *      checkout [FILES [KB [STRATEGY]]]
+ *          Commits FILES files (default 2000) of KB kilobytes (default 64)
+ *          on two branches that differ in every file, and times switching
+ *          between them with core.parallelism set to 1, 2, 4 and 8. With
+ *          a STRATEGY other than copy, objects are stored uncompressed,
+ *          every file may be linked, and checkout.materialize is set
+ *          to it.
+ *  @author Tim Li
+ */
+public class Bench {
+
+    /** Number of timed runs of a command, of which the median is kept. */
+    private static final int RUNS = 5;
+    /** Source of the synthetic contents. */
+    private static final Random RANDOM = new Random(61);
+
+    /** Run the benchmark named by ARGS[0] with the rest of ARGS. */
+    public static void main(String... args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java gitlet.Bench NAME ARGS...");
+            System.exit(1);
+        }
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+        case "pack-delta":
+            packDelta(rest);
+            break;
+        case "codec":
+            codec(rest);
+            break;
+        case "merge-base":
+            mergeBase(rest);
+            break;
+        case "merge-base-run":
+            mergeBaseRun(rest);
+            break;
+        case "tree-walk":
+            treeWalk(rest);
+            break;
+        case "tree-walk-run":
+            treeWalkRun(rest);
+            break;
+        case "checkout":
+            checkout(rest);
+            break;
+        default:
+            System.err.println("No benchmark named " + args[0]);
+            System.exit(1);
+        }
+    }
+
+    /** The pack-delta benchmark.
+     * @param args size in megabytes and number of edits
+     * @throws IOException if the repository cannot be built
+     */
+    private static void packDelta(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int edits = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        File dir = Files.createTempDirectory("gitlet-bench").toFile();
+        try {
+            gitlet(dir, "init");
+            List<String> lines = new ArrayList<>();
+            long size = 0;
+            while (size < (long) megabytes << 20) {
+                String line = randomLine();
+                lines.add(line);
+                size += line.length() + 1;
+            }
+            File file = new File(dir, "big.txt");
+            for (int i = 0; i <= edits; i += 1) {
+                if (i > 0) {
+                    lines.set(RANDOM.nextInt(lines.size()), randomLine());
+                }
+                Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+                gitlet(dir, "add", "big.txt");
+                gitlet(dir, "commit", "edit " + i);
+            }
+            List<String> ids = new ArrayList<>();
+            for (String line : gitlet(dir, "log").split("\n")) {
+                if (line.startsWith("commit ")) {
+                    ids.add(line.substring("commit ".length()));
+                }
+            }
+            String newest = ids.get(0);
+            String oldest = ids.get(ids.size() - 2);
+
+            System.out.printf("%d MB file, %d edits%n", megabytes, edits);
+            System.out.printf("%-8s %14s %16s %16s%n", "store",
+                    ".gitlet bytes", "checkout old ms", "checkout new ms");
+            report(dir, "loose", oldest, newest);
+            gitlet(dir, "pack");
+            report(dir, "packed", oldest, newest);
+        } finally {
+            delete(dir.toPath());
+        }
+    }
+
+    /** The codec benchmark.
+     * @param args number of files and of iterations
+     */
+    private static void codec(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        HashMap<String, String> blobs = new HashMap<>();
+        for (int i = 0; i < files; i += 1) {
+            blobs.put("src/file" + i + ".txt", Utils.sha1(randomLine()));
+        }
+        Commit commit = new Commit(randomLine(), Utils.sha1(randomLine()),
+                new Date(), blobs);
+        byte[] serialized = Utils.serialize(commit);
+        Tree tree = new Tree();
+        tree.getFiles().putAll(blobs);
+        byte[] encodedTree = tree.encode();
+        commit.setTree(Utils.sha1(encodedTree));
+        byte[] encoded = commit.encode();
+
+        System.out.printf("commit of %d files, %d decodes%n", files,
+                iterations);
+        System.out.printf("%-10s %8s %12s%n", "codec", "bytes", "decode us");
+        System.out.printf("%-10s %8d %12.2f%n", "serialize",
+                serialized.length, decodeMicros(serialized, null, iterations));
+        System.out.printf("%-10s %8d %12.2f%n", "encode",
+                encoded.length + encodedTree.length,
+                decodeMicros(encoded, encodedTree, iterations));
+    }
+
+    /** Mean time to decode a commit and its files, after as many warm-up
+     * decodes.
+     * @param bytes stored commit
+     * @param tree stored tree of its files, or null if BYTES holds them
+     * @param iterations number of timed decodes
+     * @return microseconds
+     */
+    private static double decodeMicros(byte[] bytes, byte[] tree,
+                                       int iterations) {
+        int sink = 0;
+        long start = 0;
+        for (int i = 0; i < 2 * iterations; i += 1) {
+            if (i == iterations) {
+                start = System.nanoTime();
+            }
+            Commit commit = Commit.decode(bytes);
+            sink += tree == null ? commit.getBlobs().size()
+                    : commit.getTree().length()
+                    + Tree.decode(tree).getFiles().size();
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / iterations;
+        if (sink == 0) {
+            System.out.print("");
+        }
+        return micros;
+    }
+
+    /** The merge-base benchmark.
+     * @param args number of commits
+     * @throws IOException if the repository cannot be built
+     */
+    private static void mergeBase(String[] args) throws IOException {
+        String commits = args.length > 0 ? args[0] : "2000";
+        File dir = Files.createTempDirectory("gitlet-bench").toFile();
+        try {
+            gitlet(dir, "init");
+            List<String> command = new ArrayList<>(List.of("java", "-cp",
+                    System.getProperty("java.class.path"), "gitlet.Bench",
+                    "merge-base-run", commits));
+            Process process = new ProcessBuilder(command).directory(dir)
+                    .inheritIO().start();
+            if (process.waitFor() != 0) {
+                throw new IOException("merge-base-run failed");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            delete(dir.toPath());
+        }
+    }
+
+    /** Build the history of the merge-base benchmark in the repository in
+     * the current directory and time both searches on it.
+     * @param args number of commits
+     */
+    private static void mergeBaseRun(String[] args) {
+        int commits = Integer.parseInt(args[0]);
+        String trunk = Reference.fromFile().getHead();
+        for (int i = 0; i < commits; i += 1) {
+            trunk = saveCommit(new Commit(randomLine(), trunk, new Date()));
+        }
+        String one = trunk;
+        String two = trunk;
+        for (int i = 0; i < commits; i += 1) {
+            one = saveCommit(new Commit(randomLine(), one, new Date()));
+            two = saveCommit(new Commit(randomLine(), two, new Date()));
+        }
+        String crossOne = saveCommit(new MergeCommit(randomLine(), one, two,
+                "one", "two", new Date()));
+        String crossTwo = saveCommit(new MergeCommit(randomLine(), two, one,
+                "two", "one", new Date()));
+        one = saveCommit(new Commit(randomLine(), crossOne, new Date()));
+        two = saveCommit(new Commit(randomLine(), crossTwo, new Date()));
+
+        long start = System.nanoTime();
+        String quadratic = quadraticSplitPoint(one, two);
+        double quadraticMillis = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        CommitGraph graph = CommitGraph.get();
+        int[] bases = graph.mergeBases(graph.index(one), graph.index(two));
+        double graphMillis = (System.nanoTime() - start) / 1e6;
+
+        System.out.printf("%d commits, %d best common ancestors%n",
+                graph.size(), bases.length);
+        System.out.printf("%-10s %12s %s%n", "search", "ms", "split point");
+        System.out.printf("%-10s %12.1f %s%n", "ancestors", quadraticMillis,
+                quadratic);
+        System.out.printf("%-10s %12.1f %s%n", "graph", graphMillis,
+                graph.hash(bases[0]));
+    }
+
+    /** The tree-walk benchmark.
+     * @param args numbers of files, directories and changed directories
+     * @throws IOException if the tree cannot be built
+     */
+    private static void treeWalk(String[] args) throws IOException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int dirs = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        String changed = args.length > 2 ? args[2] : "50";
+        File dir = Files.createTempDirectory("gitlet-bench").toFile();
+        try {
+            gitlet(dir, "init");
+            for (int i = 1; i <= dirs; i += 1) {
+                new File(dir, treeDir(i)).mkdir();
+            }
+            for (int i = 0; i < files; i += 1) {
+                Files.writeString(new File(new File(dir,
+                        treeDir(i % (dirs + 1))), "f" + i + ".txt").toPath(),
+                        randomLine());
+            }
+            FileTime old = FileTime.fromMillis(System.currentTimeMillis()
+                    - 10 * StatCache.RACY_MILLIS);
+            for (int i = 0; i <= dirs; i += 1) {
+                Files.setLastModifiedTime(new File(dir, treeDir(i))
+                        .toPath(), old);
+            }
+            List<String> command = new ArrayList<>(List.of("java", "-cp",
+                    System.getProperty("java.class.path"), "gitlet.Bench",
+                    "tree-walk-run", Integer.toString(dirs), changed));
+            Process process = new ProcessBuilder(command).directory(dir)
+                    .inheritIO().start();
+            if (process.waitFor() != 0) {
+                throw new IOException("tree-walk-run failed");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            delete(dir.toPath());
+        }
+    }
+
+    /** Path of directory I of the tree-walk benchmark: the root for 0,
+     * and otherwise a directory under directory (I - 1) / 16.
+     * @param i number of the directory
+     * @return path relative to the root
+     */
+    private static String treeDir(int i) {
+        return i == 0 ? "." : treeDir((i - 1) / 16) + "/d" + i;
+    }
+
+    /** Time the listings of the tree-walk benchmark on the working tree
+     * in the current directory.
+     * @param args numbers of directories and changed directories
+     * @throws IOException if the tree cannot be read
+     */
+    private static void treeWalkRun(String[] args) throws IOException {
+        int dirs = Integer.parseInt(args[0]);
+        int changed = Integer.parseInt(args[1]);
+        File cwd = Reference.fromFile().getCwd();
+        System.out.printf("%-12s %10s %10s %8s %8s%n", "walk", "ms", "files",
+                "listed", "clean");
+        double[] times = new double[RUNS];
+        int count = 0;
+        for (int run = 0; run < RUNS; run += 1) {
+            long start = System.nanoTime();
+            count = walkFileTree(cwd.toPath());
+            times[run] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        System.out.printf("%-12s %10.1f %10d %8s %8s%n", "walkFileTree",
+                times[RUNS / 2], count, "-", "-");
+        treeWalkRow(cwd, "cold", true);
+        treeWalkRow(cwd, "warm", false);
+        for (int i = 0; i < changed; i += 1) {
+            Files.writeString(new File(new File(treeDir(1 + i * dirs
+                    / changed)), "new.txt").toPath(), randomLine());
+        }
+        treeWalkRow(cwd, "changed", false);
+    }
+
+    /** Print one row of the tree-walk results: the median time to list
+     * the working files with a WorkingTree.
+     * @param cwd working directory
+     * @param label name of the row
+     * @param cold whether to drop the directory cache before each run
+     */
+    private static void treeWalkRow(File cwd, String label, boolean cold) {
+        double[] times = new double[RUNS];
+        int count = 0;
+        long listed = 0;
+        long clean = 0;
+        for (int run = 0; run < RUNS; run += 1) {
+            if (cold) {
+                DirCache.FILE.delete();
+            }
+            listed = Stats.get(DirCache.LISTED);
+            clean = Stats.get(DirCache.CLEAN);
+            long start = System.nanoTime();
+            try (WorkingTree tree = new WorkingTree(cwd)) {
+                count = tree.files().size();
+                times[run] = (System.nanoTime() - start) / 1e6;
+            }
+            listed = Stats.get(DirCache.LISTED) - listed;
+            clean = Stats.get(DirCache.CLEAN) - clean;
+        }
+        Arrays.sort(times);
+        System.out.printf("%-12s %10.1f %10d %8d %8d%n", label,
+                times[RUNS / 2], count, listed, clean);
+    }
+
+    /** Count the working files as Gitlet once did, with one thread and a
+     * stat of every entry.
+     * @param root working directory
+     * @return number of regular files outside .gitlet
+     * @throws IOException if it cannot be read
+     */
+    private static int walkFileTree(Path root) throws IOException {
+        int[] count = {0};
+        Path gitlet = root.resolve(Gitlet.GITLET_FOLDER.getName());
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) {
+                return dir.equals(gitlet) ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    count[0] += 1;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    /** The checkout benchmark.
+     * @param args number of files, their size in kilobytes and strategy
+     * @throws IOException if the repository cannot be built
+     */
+    private static void checkout(String[] args) throws IOException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int kilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        String strategy = args.length > 2 ? args[2] : Materializer.COPY;
+        File dir = Files.createTempDirectory("gitlet-bench").toFile();
+        try {
+            gitlet(dir, "init");
+            gitlet(dir, "config", Materializer.STRATEGY, strategy);
+            if (!strategy.equals(Materializer.COPY)) {
+                gitlet(dir, "config", ObjectStore.COMPRESSION, "0");
+                gitlet(dir, "config", Materializer.LINK_MIN_SIZE, "0");
+            }
+            writeFiles(dir, files, kilobytes);
+            gitlet(dir, "commit", "one");
+            gitlet(dir, "branch", "other");
+            gitlet(dir, "checkout", "other");
+            writeFiles(dir, files, kilobytes);
+            gitlet(dir, "commit", "two");
+            double megabytes = files * kilobytes / 1024.0;
+            System.out.printf("%-8s %12s %12s%n", "threads", "ms", "MB/s");
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                gitlet(dir, "config", Config.PARALLELISM,
+                        Integer.toString(threads));
+                double[] times = new double[2 * RUNS];
+                for (int i = 0; i < times.length; i += 1) {
+                    long start = System.nanoTime();
+                    gitlet(dir, "checkout", i % 2 == 0 ? "master" : "other");
+                    times[i] = (System.nanoTime() - start) / 1e6;
+                }
+                Arrays.sort(times);
+                double median = times[RUNS];
+                System.out.printf("%-8d %12.1f %12.1f%n", threads, median,
+                        megabytes / median * 1000);
+            }
+        } finally {
+            delete(dir.toPath());
+        }
+    }
+
+    /** Write and stage FILES files of random bytes in folder d of DIR.
+     * @param dir repository
+     * @param files number of files
+     * @param kilobytes size of each file
+     * @throws IOException if they cannot be written
+     */
+    private static void writeFiles(File dir, int files, int kilobytes)
+            throws IOException {
+        File folder = new File(dir, "d");
+        folder.mkdirs();
+        byte[] bytes = new byte[kilobytes * 1024];
+        for (int i = 0; i < files; i += 1) {
+            RANDOM.nextBytes(bytes);
+            Files.write(new File(folder, "f" + i).toPath(), bytes);
+        }
+        gitlet(dir, "add", "d");
+    }
+
+    /** Store a commit of the merge-base benchmark.
+     * @param commit commit
+     * @return its hash
+     */
+    private static String saveCommit(Commit commit) {
+        String hash = Utils.sha1(commit.encode());
+        commit.saveFile(hash);
+        return hash;
+    }
+
+    /** The split point as Gitlet found it before the commit graph: every
+     * ancestor of the first commit, breadth first, is looked for in the
+     * list of all ancestors of the second.
+     * @param one first commit
+     * @param two second commit
+     * @return hash of the split point
+     */
+    private static String quadraticSplitPoint(String one, String two) {
+        List<String> ancestors = ancestors(two);
+        for (String hash : ancestors(one)) {
+            if (ancestors.contains(hash)) {
+                return hash;
+            }
+        }
+        return null;
+    }
+
+    /** Every ancestor of a commit, breadth first, read from its file.
+     * @param hash commit
+     * @return hashes
+     */
+    private static List<String> ancestors(String hash) {
+        ArrayDeque<Commit> queue = new ArrayDeque<>();
+        List<String> hashes = new ArrayList<>();
+        queue.add(Commit.headerFromFile(hash));
+        while (!queue.isEmpty()) {
+            Commit next = queue.poll();
+            hashes.add(next.hash());
+            if (next.getParent() != null) {
+                queue.add(Commit.headerFromFile(next.getParent()));
+            }
+            if (next.isMerge()) {
+                queue.add(Commit.headerFromFile(next.getSecondParent()));
+            }
+        }
+        return hashes;
+    }
+
+    /** Print one row of the pack-delta results.
+     * @param dir repository
+     * @param label name of the row
+     * @param oldest hash of the first version
+     * @param newest hash of the last version
+     * @throws IOException if the repository cannot be read
+     */
+    private static void report(File dir, String label, String oldest,
+                               String newest) throws IOException {
+        System.out.printf("%-8s %14d %16.1f %16.1f%n", label,
+                sizeOf(new File(dir, ".gitlet").toPath()),
+                millis(dir, "checkout", oldest, "--", "big.txt"),
+                millis(dir, "checkout", newest, "--", "big.txt"));
+    }
+
+    /** A line of random lowercase words.
+     * @return line
+     */
+    private static String randomLine() {
+        StringBuilder line = new StringBuilder();
+        int words = 4 + RANDOM.nextInt(8);
+        for (int w = 0; w < words; w += 1) {
+            if (w > 0) {
+                line.append(' ');
+            }
+            int length = 2 + RANDOM.nextInt(7);
+            for (int c = 0; c < length; c += 1) {
+                line.append((char) ('a' + RANDOM.nextInt(26)));
+            }
+        }
+        return line.toString();
+    }
+
+    /** Median wall-clock time of a Gitlet command.
+     * @param dir working directory
+     * @param args command and operands
+     * @return milliseconds
+     * @throws IOException if the command fails
+     */
+    static double millis(File dir, String... args) throws IOException {
+        double[] times = new double[RUNS];
+        for (int i = 0; i < RUNS; i += 1) {
+            long start = System.nanoTime();
+            gitlet(dir, args);
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+    /** Run Gitlet in a child process.
+     * @param dir working directory
+     * @param args command and operands
+     * @return what the command printed
+     * @throws IOException if the command cannot be run or fails
+     */
+    static String gitlet(File dir, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of("java", "-cp",
+                System.getProperty("java.class.path"), "gitlet.Main"));
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).directory(dir)
+                .redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException(String.join(" ", args) + " failed: "
+                        + output);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        return output;
+    }
+
+    /** Total size of the files under a directory.
+     * @param dir directory
+     * @return bytes
+     * @throws IOException if it cannot be walked
+     */
+    static long sizeOf(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile)
+                    .mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    /** Delete a directory tree.
+     * @param dir directory
+     * @throws IOException if it cannot be walked
+     */
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+
+/** Chunked storage of large blobs. A file at least chunk.threshold bytes
+ * long is cut into chunks at content-defined boundaries, found with a
+ * rolling gear hash, so that an edit in place only changes the chunks
+ * around it. Each chunk is stored once in the chunk folder, named by its
+ * own hash, and the blob file holds the list of its chunks instead of the
+ * contents. The blob keeps the hash of its whole contents, so commits and
+ * the stage refer to it as to any other blob.
+ *
+ * A chunk list is a four byte header followed by a (hash, length) pair
+ * for each chunk, in order.
+ * @author Tim Li
+ */
+class Chunks {
+
+    /** Config key of the size from which files are stored in chunks; 0,
+     * the default, never chunks. */
+    static final String THRESHOLD = "chunk.threshold";
+    /** Header of a chunk list. */
+    static final byte[] MAGIC = {'G', 'L', 'C', '1'};
+    /** Smallest chunk, except at the end of a file. */
+    static final int MIN_SIZE = 16 << 10;
+    /** Largest chunk. */
+    static final int MAX_SIZE = 256 << 10;
+    /** A boundary is placed where these bits of the hash are all zero,
+     * which makes chunks 64 KB long on average. */
+    private static final long BOUNDARY = 0xffffL << 48;
+    /** Length of a hash in bytes. */
+    private static final int HASH_BYTES = Utils.UID_LENGTH / 2;
+    /** Random value mixed into the rolling hash for each byte value. The
+     * seed is fixed so that every repository cuts the same chunks. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6a09e667L);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Location of a chunk.
+     * @param hash chunk hash
+     * @return file location
+     */
+    static File chunkFile(String hash) {
+        return ObjectStore.objectFile(Gitlet.CHUNK_FOLDER, hash);
+    }
+
+    /** Cut a stream into chunks, storing the chunks not stored yet.
+     * @param in contents of the blob
+     * @param digest updated with every byte read
+     * @return chunk list, without the header
+     * @throws IOException if the stream cannot be read
+     */
+    static byte[] store(InputStream in, MessageDigest digest)
+            throws IOException {
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(list);
+        byte[] buffer = new byte[ObjectStore.BUFFER_SIZE];
+        byte[] chunk = new byte[MAX_SIZE];
+        int length = 0;
+        long hash = 0;
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            digest.update(buffer, 0, n);
+            for (int i = 0; i < n; i += 1) {
+                chunk[length] = buffer[i];
+                length += 1;
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                if (length == MAX_SIZE
+                        || length >= MIN_SIZE && (hash & BOUNDARY) == 0) {
+                    storeChunk(chunk, length, out);
+                    length = 0;
+                    hash = 0;
+                }
+            }
+        }
+        if (length > 0) {
+            storeChunk(chunk, length, out);
+        }
+        out.flush();
+        return list.toByteArray();
+    }
+
+    /** Store one chunk, unless it is already stored, in which case it is
+     * freshened for gc, and list it.
+     * @param chunk buffer holding the chunk
+     * @param length length of the chunk
+     * @param list chunk list being written
+     * @throws IOException if the list cannot be written
+     */
+    private static void storeChunk(byte[] chunk, int length,
+                                   DataOutputStream list)
+            throws IOException {
+        byte[] contents = Arrays.copyOf(chunk, length);
+        String hash = Utils.sha1(contents);
+        File file = chunkFile(hash);
+        if (!ObjectStore.freshen(file)) {
+            ObjectStore.write(file, contents);
+        }
+        list.write(Pack.fromHex(hash));
+        list.writeInt(length);
+    }
+
+    /** Does a blob file hold a chunk list.
+     * @param file blob file
+     * @return yes or no
+     */
+    static boolean isChunked(File file) {
+        byte[] head = new byte[MAGIC.length];
+        try (InputStream in = new FileInputStream(file)) {
+            return in.readNBytes(head, 0, head.length) == head.length
+                    && Arrays.equals(head, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Hashes of the chunks of a chunked blob, in order.
+     * @param file blob file
+     * @return chunk hashes
+     */
+    static String[] chunks(File file) {
+        byte[] list = list(file);
+        String[] hashes = new String[list.length / (HASH_BYTES + 4)];
+        for (int i = 0; i < hashes.length; i += 1) {
+            int at = i * (HASH_BYTES + 4);
+            hashes[i] = Pack.toHex(Arrays.copyOfRange(list, at,
+                    at + HASH_BYTES));
+        }
+        return hashes;
+    }
+
+    /** Size of the contents of a chunked blob.
+     * @param file blob file
+     * @return size in bytes
+     */
+    static long size(File file) {
+        long size = 0;
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(list(file)))) {
+            while (in.available() > 0) {
+                in.skipNBytes(HASH_BYTES);
+                size += in.readInt();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return size;
+    }
+
+    /** The chunk list of a chunked blob, without its header.
+     * @param file blob file
+     * @return chunk list
+     */
+    private static byte[] list(File file) {
+        byte[] contents = Utils.readContents(file);
+        return Arrays.copyOfRange(contents, MAGIC.length, contents.length);
+    }
+
+    /** Stream the contents of a chunked blob, opening each chunk only when
+     * the previous one has been read.
+     * @param file blob file
+     * @return stream of the contents
+     */
+    static InputStream open(File file) {
+        String[] hashes = chunks(file);
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int _next = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return _next < hashes.length;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                File chunk = chunkFile(hashes[_next]);
+                _next += 1;
+                try {
+                    return ObjectStore.open(chunk);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,255 @@
+package gitlet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/** Pieces of the binary encoding of commits, the stage and the references.
+ * Every file starts with a four byte header naming what it holds and the
+ * version of its layout. Strings are a length and UTF-8 bytes, hashes their
+ * twenty raw bytes, and maps of file names to hashes are written sorted by
+ * name, so that the same contents always encode to the same bytes.
+ *
+ * Files written by earlier versions hold Java serialization, which starts
+ * with bytes no header does.
+ * @author Tim Li
+ */
+class Codec {
+
+    /** First two bytes of every Java serialization stream. */
+    private static final byte[] SERIALIZED = {(byte) 0xac, (byte) 0xed};
+    /** Length of a hash in bytes. */
+    private static final int HASH_BYTES = Utils.UID_LENGTH / 2;
+    /** Formats hashes as lowercase hex. */
+    private static final HexFormat HEX = HexFormat.of();
+
+    /** Does BYTES start with HEADER.
+     * @param bytes file contents
+     * @param header expected header
+     * @return yes or no
+     */
+    static boolean startsWith(byte[] bytes, byte[] header) {
+        return bytes.length >= header.length
+                && Arrays.equals(bytes, 0, header.length,
+                header, 0, header.length);
+    }
+
+    /** Was a file written with Java serialization.
+     * @param bytes file contents
+     * @return yes or no
+     */
+    static boolean isSerialized(byte[] bytes) {
+        return startsWith(bytes, SERIALIZED);
+    }
+
+    /** Write a string, which may be null.
+     * @param out destination
+     * @param s string
+     * @throws IOException if it cannot be written
+     */
+    static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        if (s == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /** Write a hash, which may be null.
+     * @param out destination
+     * @param hash hash
+     * @throws IOException if it cannot be written
+     */
+    static void writeHash(DataOutputStream out, String hash)
+            throws IOException {
+        out.writeBoolean(hash != null);
+        if (hash != null) {
+            out.write(Pack.fromHex(hash));
+        }
+    }
+
+    /** Write a map of names to hashes, sorted by name.
+     * @param out destination
+     * @param map names and hashes
+     * @throws IOException if it cannot be written
+     */
+    static void writeMap(DataOutputStream out, Map<String, String> map)
+            throws IOException {
+        String[] names = map.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        writeVarint(out, names.length);
+        for (String name : names) {
+            writeString(out, name);
+            out.write(Pack.fromHex(map.get(name)));
+        }
+    }
+
+    /** Write a non-negative int seven bits at a time.
+     * @param out destination
+     * @param value value
+     * @throws IOException if it cannot be written
+     */
+    static void writeVarint(DataOutputStream out, int value)
+            throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** Reads the pieces back out of the bytes of a file. Decoding is on the
+     * path of every command that loads a commit, so this works directly on
+     * the array rather than through a stream. */
+    static class Reader {
+
+        /** Bytes being read. */
+        private byte[] _bytes;
+        /** Position of the next byte. */
+        private int _pos;
+
+        /** A reader of BYTES from the first byte.
+         * @param bytes file contents
+         */
+        Reader(byte[] bytes) {
+            this(bytes, 0);
+        }
+
+        /** A reader of BYTES from POS.
+         * @param bytes file contents
+         * @param pos position of the first byte to read
+         */
+        Reader(byte[] bytes, int pos) {
+            _bytes = bytes;
+            _pos = pos;
+        }
+
+        /** Position of the next byte.
+         * @return position
+         */
+        int position() {
+            return _pos;
+        }
+
+        /** Check and skip the header of a file.
+         * @param header expected header
+         */
+        void readHeader(byte[] header) {
+            if (!startsWith(_bytes, header)) {
+                throw new IllegalArgumentException("unknown format");
+            }
+            _pos = header.length;
+        }
+
+        /** Read a boolean.
+         * @return value
+         */
+        boolean readBoolean() {
+            need(1);
+            _pos += 1;
+            return _bytes[_pos - 1] != 0;
+        }
+
+        /** Read an int, most significant byte first.
+         * @return value
+         */
+        int readInt() {
+            need(Integer.BYTES);
+            int value = 0;
+            for (int i = 0; i < Integer.BYTES; i += 1) {
+                value = (value << 8) | (_bytes[_pos + i] & 0xff);
+            }
+            _pos += Integer.BYTES;
+            return value;
+        }
+
+        /** Read a long, most significant byte first.
+         * @return value
+         */
+        long readLong() {
+            need(Long.BYTES);
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i += 1) {
+                value = (value << 8) | (_bytes[_pos + i] & 0xff);
+            }
+            _pos += Long.BYTES;
+            return value;
+        }
+
+        /** Read a string written by writeString.
+         * @return string, or null
+         */
+        String readString() {
+            int length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            need(length - 1);
+            String s = new String(_bytes, _pos, length - 1,
+                    StandardCharsets.UTF_8);
+            _pos += length - 1;
+            return s;
+        }
+
+        /** Read a hash written by writeHash.
+         * @return hash, or null
+         */
+        String readHash() {
+            return readBoolean() ? readRawHash() : null;
+        }
+
+        /** Read a map written by writeMap.
+         * @return names and hashes
+         */
+        HashMap<String, String> readMap() {
+            int size = readVarint();
+            HashMap<String, String> map = new HashMap<>(size * 4 / 3 + 1);
+            for (int i = 0; i < size; i += 1) {
+                String name = readString();
+                map.put(name, readRawHash());
+            }
+            return map;
+        }
+
+        /** Read an int written by writeVarint.
+         * @return value
+         */
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                need(1);
+                int b = _bytes[_pos];
+                _pos += 1;
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        /** Read the twenty bytes of a hash as hex.
+         * @return hash
+         */
+        private String readRawHash() {
+            need(HASH_BYTES);
+            _pos += HASH_BYTES;
+            return HEX.formatHex(_bytes, _pos - HASH_BYTES, _pos);
+        }
+
+        /** Check that N more bytes can be read.
+         * @param n number of bytes
+         */
+        private void need(int n) {
+            if (n > _bytes.length - _pos) {
+                throw new IllegalArgumentException("truncated file");
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Mark-and-sweep garbage collection of the object store. Everything
+ * reachable from the branches, HEAD and the stage is marked, walking the
+ * history on all cores; every other object older than gc.pruneExpire
+ * seconds is then deleted. Younger objects are kept, since a command
+ * running at the same time may have written them and not yet recorded
+ * them anywhere.
+ * @author Tim Li
+ */
+class Collector {
+
+    /** Config key of the age in seconds below which unreachable objects
+     * are kept. */
+    static final String PRUNE_EXPIRE = "gc.pruneExpire";
+    /** Default of gc.pruneExpire: two weeks, as in git. */
+    static final int DEFAULT_PRUNE_EXPIRE = 14 * 24 * 60 * 60;
+
+    /** Hashes of the reachable commits. */
+    private Set<String> _commits;
+    /** Hashes of the reachable trees. */
+    private Set<String> _trees;
+    /** Hashes of the reachable blobs. */
+    private Set<String> _blobs;
+    /** Objects last modified before this time, in milliseconds since the
+     * epoch, may be deleted. */
+    private long _expire;
+
+    /** A collector for the repository in the current directory. */
+    Collector() {
+        _commits = ConcurrentHashMap.newKeySet();
+        _trees = ConcurrentHashMap.newKeySet();
+        _blobs = ConcurrentHashMap.newKeySet();
+        _expire = System.currentTimeMillis() - 1000L
+                * Config.fromFile().getInt(PRUNE_EXPIRE, DEFAULT_PRUNE_EXPIRE);
+    }
+
+    /** Mark, then sweep. */
+    void run() {
+        mark();
+        sweep();
+    }
+
+    /** Mark every commit, tree and blob reachable from the branches, HEAD
+     * and the stage. Each commit is marked by its own task, which forks a
+     * task for each parent not marked yet. */
+    private void mark() {
+        Reference ref = Reference.fromFile();
+        Stage stage = Stage.fromFile();
+        _blobs.addAll(stage.getAdditions().values());
+        _blobs.addAll(stage.getRemovals().values());
+
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        ForkJoinPool pool = Config.fromFile().pool();
+        try {
+            List<String> roots = new ArrayList<>(ref.getBranches().values());
+            roots.add(ref.getHead());
+            for (String root : roots) {
+                if (root != null && _commits.add(root)) {
+                    pool.execute(new Mark(root, failure));
+                }
+            }
+            pool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.DAYS);
+        } finally {
+            pool.shutdown();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /** Marks one commit and its trees and blobs, and forks the marking of
+     * its parents. */
+    private class Mark extends RecursiveAction {
+
+        /** Hash of the commit, already added to _commits. */
+        private String _hash;
+        /** Where the first failure of any task is recorded. */
+        private AtomicReference<RuntimeException> _failure;
+
+        /** Marking of a commit.
+         * @param hash commit hash
+         * @param failure first failure of any task
+         */
+        Mark(String hash, AtomicReference<RuntimeException> failure) {
+            _hash = hash;
+            _failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Commit commit = Commit.fromFile(_hash);
+                markTree(commit.getTree());
+                for (String parent : new String[] {commit.getParent(),
+                        commit.getSecondParent()}) {
+                    if (parent != null && _commits.add(parent)) {
+                        new Mark(parent, _failure).fork();
+                    }
+                }
+            } catch (RuntimeException e) {
+                _failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /** Mark a tree and everything under it, unless it is marked already,
+     * as trees shared with another commit are.
+     * @param hash tree hash, or null for an empty snapshot
+     */
+    private void markTree(String hash) {
+        if (hash == null || !_trees.add(hash)) {
+            return;
+        }
+        Tree tree = Tree.fromFile(hash);
+        _blobs.addAll(tree.getFiles().values());
+        for (String dir : tree.getDirs().values()) {
+            markTree(dir);
+        }
+    }
+
+    /** Delete what was not marked and is old enough. Packs are rewritten
+     * without such objects first; loose objects are then deleted one by
+     * one, together with the chunks no kept blob refers to and the linked
+     * copies of unreachable blobs, and the commit graph is rewritten
+     * without the deleted commits. */
+    private void sweep() {
+        List<Pack> packs = ObjectStore.packs();
+        if (!packs.isEmpty()) {
+            ObjectStore.repack(hash -> keep(hash, packs));
+        }
+
+        Set<String> chunks = new HashSet<>();
+        for (String hash : ObjectStore.objectIds(Gitlet.BLOB_FOLDER, "")) {
+            File file = ObjectStore.blobFile(hash);
+            if (!_blobs.contains(hash) && file.lastModified() < _expire) {
+                delete(file);
+            } else if (Chunks.isChunked(file)) {
+                chunks.addAll(List.of(Chunks.chunks(file)));
+            }
+        }
+        for (String hash : ObjectStore.objectIds(Gitlet.COMMIT_FOLDER, "")) {
+            File file = ObjectStore.commitFile(hash);
+            if (!_commits.contains(hash) && file.lastModified() < _expire) {
+                delete(file);
+            }
+        }
+        for (String hash : ObjectStore.objectIds(Gitlet.TREE_FOLDER, "")) {
+            File file = ObjectStore.treeFile(hash);
+            if (!_trees.contains(hash) && file.lastModified() < _expire) {
+                delete(file);
+            }
+        }
+        for (String hash : ObjectStore.objectIds(Gitlet.CHUNK_FOLDER, "")) {
+            File file = Chunks.chunkFile(hash);
+            if (!chunks.contains(hash) && file.lastModified() < _expire) {
+                delete(file);
+            }
+        }
+        for (String hash : ObjectStore.objectIds(Materializer.LINK_FOLDER,
+                "")) {
+            File file = Materializer.linkFile(hash);
+            if (!_blobs.contains(hash) && file.lastModified() < _expire) {
+                delete(file);
+            }
+        }
+        CommitGraph.retain(ObjectStore::hasCommit);
+        File[] temps = Gitlet.BLOB_FOLDER.listFiles((dir, name) ->
+                name.startsWith("tmp-"));
+        for (File temp : temps == null ? new File[0] : temps) {
+            if (temp.lastModified() < _expire) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** Should an object survive a rewrite of the packs: it is reachable,
+     * or it is stored loose or in a pack more recently than the expiry.
+     * @param hash commit, tree or blob hash
+     * @param packs the packs being rewritten
+     * @return yes or no
+     */
+    private boolean keep(String hash, List<Pack> packs) {
+        if (_commits.contains(hash) || _trees.contains(hash)
+                || _blobs.contains(hash)) {
+            return true;
+        }
+        if (ObjectStore.commitFile(hash).lastModified() >= _expire
+                || ObjectStore.treeFile(hash).lastModified() >= _expire
+                || ObjectStore.blobFile(hash).lastModified() >= _expire) {
+            return true;
+        }
+        for (Pack pack : packs) {
+            if (pack.file().lastModified() >= _expire
+                    && (pack.find(hash, Pack.COMMIT) >= 0
+                    || pack.find(hash, Pack.TREE) >= 0
+                    || pack.find(hash, Pack.BLOB) >= 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Delete an object file and its shard, if that is now empty.
+     * @param file object file
+     */
+    private static void delete(File file) {
+        file.delete();
+        file.getParentFile().delete();
+    }
+}
@@ -1,15 +1,36 @@
 package gitlet;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.HashMap;
 
-/** A class that manages commit.
+/** A class that manages commit. A commit is stored as its magic and the
+ *  length of its header, then the header: whether it is a merge, its
+ *  message, time, parent, root tree and, for a merge, the fields of
+ *  MergeCommit. Its files are in the tree, and are only read when first
+ *  asked for. Commits written before trees hold their blobs in a table
+ *  after the header instead.
  *  @author Tim Li */
 public class Commit implements Serializable {
 
+    /** Pinned so that commits written by earlier versions stay readable. */
+    private static final long serialVersionUID = -2601550593845023896L;
+
+    /** Magic of an encoded commit. */
+    static final byte[] MAGIC = {'G', 'C', 'M', '3'};
+    /** Magic of the second encoding, with a table of blobs. */
+    static final byte[] MAGIC_V2 = {'G', 'C', 'M', '2'};
+    /** Magic of the first encoding, which had no header length. */
+    static final byte[] MAGIC_V1 = {'G', 'C', 'M', '1'};
+    /** Encoded time of a commit without a timestamp. */
+    static final long NO_TIME = Long.MIN_VALUE;
+
     /** hash of the commit object. */
     private String _hash;
     /** the message of the commit. */
@@ -18,8 +39,21 @@ public class Commit implements Serializable {
     private Date _timestamp;
     /** the parent of this commit object. */
     private String _parent;
-    /** a HashMap of blobs, with the file name as keys and hash as values. */
+    /** a HashMap of blobs, with the file name as keys and hash as values.
+     *  Null until first used if the commit was read from a file. */
     private HashMap<String, String> _blobs;
+    /** Hash of the root tree, or null if there are no files or they were
+     *  given as a map and have not been stored as trees yet. */
+    private String _tree;
+    /** Stored bytes of a commit with a blob table while the table is not
+     *  decoded yet. */
+    private transient byte[] _table;
+    /** Where the blobs start in _table. */
+    private transient int _tableAt;
+    /** Whether this is the header alone of a commit with a blob table. */
+    private transient boolean _headerOnly;
+    /** Commits read from files, by hash. */
+    private static CommitCache _cache;
 
     public Commit(String message, String parent) {
         _message = message;
@@ -50,23 +84,195 @@ public class Commit implements Serializable {
             return null;
         }
 
-        File inFile = Utils.join(Gitlet.COMMIT_FOLDER, name);
-        return Utils.readObject(inFile, Commit.class);
+        Commit commit = cache().get(name);
+        if (commit == null) {
+            commit = read(name);
+            cache().put(commit);
+        }
+        return commit;
+    }
+
+    /** Loads a commit without going through the cache.
+     *  @param name name of the file
+     *  @return the commit object */
+    private static Commit read(String name) {
+        Commit commit;
+        try (InputStream in = ObjectStore.openCommit(name)) {
+            commit = decode(in.readAllBytes());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        commit._hash = name;
+        return commit;
+    }
+
+    /** Loads the header of a commit, without reading its blobs. They are
+     *  read from the file if they are asked for later.
+     *  @param name name of the file
+     *  @return the commit object */
+    public static Commit headerFromFile(String name) {
+        if (name == null) {
+            return null;
+        }
+
+        Commit commit = cache().get(name);
+        if (commit != null) {
+            return commit;
+        }
+        try (InputStream in = ObjectStore.openCommit(name)) {
+            byte[] start = in.readNBytes(MAGIC.length + Integer.BYTES);
+            boolean v2 = Codec.startsWith(start, MAGIC_V2);
+            if (v2 || Codec.startsWith(start, MAGIC)) {
+                int length = ByteBuffer.wrap(start).getInt(MAGIC.length);
+                Codec.Reader header = new Codec.Reader(in.readNBytes(length));
+                commit = decodeHeader(header, !v2);
+                commit._headerOnly = v2;
+            } else {
+                ByteArrayOutputStream all = new ByteArrayOutputStream();
+                all.write(start);
+                in.transferTo(all);
+                commit = decode(all.toByteArray());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        commit._hash = name;
+        cache().put(commit);
+        return commit;
+    }
+
+    /** The cache of commits read from files, made on first use.
+     *  @return the cache */
+    private static synchronized CommitCache cache() {
+        if (_cache == null) {
+            _cache = new CommitCache(Config.fromFile().getInt(
+                    CommitCache.MAX_WEIGHT, CommitCache.DEFAULT_MAX_WEIGHT));
+        }
+        return _cache;
+    }
+
+    /** Weight of this commit in the cache: one, plus one for each of its
+     *  blobs that has been read.
+     *  @return weight */
+    long weight() {
+        HashMap<String, String> blobs = _blobs;
+        return 1 + (blobs == null ? 0 : blobs.size());
     }
 
     /** persistance function that saves the commit object to files.
      *  @param name name of the file */
     public void saveFile(String name) {
-        File newFile = Utils.join(Gitlet.COMMIT_FOLDER, name);
+        _hash = name;
+        ObjectStore.writeCommit(name, encode());
+        CommitGraph.get().add(name, this);
+        MessageIndex.add(name, getMessage());
+    }
 
-        try {
-            newFile.createNewFile();
+    /** The bytes this commit is stored and hashed as. They do not depend
+     *  on its hash, or on the order its blobs were added in.
+     *  @return encoded commit */
+    public byte[] encode() {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(header)) {
+            out.writeBoolean(isMerge());
+            Codec.writeString(out, _message);
+            out.writeLong(_timestamp == null ? NO_TIME
+                    : _timestamp.getTime());
+            Codec.writeHash(out, _parent);
+            Codec.writeHash(out, getTree());
+            encodeMerge(out);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new IllegalArgumentException(e.getMessage());
         }
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeInt(header.size());
+            header.writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
 
-        _hash = name;
-        Utils.writeObject(newFile, this);
+    /** Write the fields only a merge commit has.
+     *  @param out destination
+     *  @throws IOException if they cannot be written */
+    void encodeMerge(DataOutputStream out) throws IOException {
+    }
+
+    /** Rebuild a commit from its stored bytes, which may also be an
+     *  encoding written by earlier versions. Its blobs are read when
+     *  first asked for.
+     *  @param bytes encoded commit
+     *  @return the commit object, without its hash */
+    static Commit decode(byte[] bytes) {
+        if (Codec.isSerialized(bytes)) {
+            return Utils.readObject(new ByteArrayInputStream(bytes),
+                    Commit.class);
+        }
+        Codec.Reader in = new Codec.Reader(bytes);
+        if (Codec.startsWith(bytes, MAGIC)) {
+            in.readHeader(MAGIC);
+            in.readInt();
+            return decodeHeader(in, true);
+        }
+        if (Codec.startsWith(bytes, MAGIC_V1)) {
+            in.readHeader(MAGIC_V1);
+        } else {
+            in.readHeader(MAGIC_V2);
+            in.readInt();
+        }
+        Commit commit = decodeHeader(in, false);
+        commit._table = bytes;
+        commit._tableAt = in.position();
+        return commit;
+    }
+
+    /** Decode the header of a commit, leaving its blobs unread.
+     *  @param in encoded header
+     *  @param tree whether the header holds a root tree
+     *  @return the commit object, without its hash or blobs */
+    private static Commit decodeHeader(Codec.Reader in, boolean tree) {
+        boolean merge = in.readBoolean();
+        String message = in.readString();
+        long time = in.readLong();
+        Date timestamp = time == NO_TIME ? null : new Date(time);
+        String parent = in.readHash();
+        String root = tree ? in.readHash() : null;
+        Commit commit;
+        if (merge) {
+            String secondParent = in.readHash();
+            String firstBranch = in.readString();
+            String secondBranch = in.readString();
+            commit = new MergeCommit(message, parent, secondParent,
+                    firstBranch, secondBranch, timestamp);
+        } else {
+            commit = new Commit(message, parent, timestamp);
+        }
+        commit._blobs = null;
+        commit._tree = root;
+        return commit;
+    }
+
+    /** The blobs, reading them first if they have not been yet. A cached
+     *  commit is weighed again once they are read.
+     *  @return blobs */
+    private synchronized HashMap<String, String> blobs() {
+        if (_blobs == null) {
+            if (_table != null) {
+                _blobs = new Codec.Reader(_table, _tableAt).readMap();
+                _table = null;
+            } else if (_headerOnly) {
+                _blobs = read(_hash).blobs();
+            } else {
+                _blobs = Tree.flatten(_tree);
+            }
+            if (_hash != null && cache().contains(_hash)) {
+                cache().put(this);
+            }
+        }
+        return _blobs;
     }
 
     /** checks if track a file by name.
@@ -74,7 +280,7 @@ public class Commit implements Serializable {
      *  @return true of tracked, false otherwise
      */
     public Boolean containsFile(String name) {
-        return _blobs.containsKey(name);
+        return blobs().containsKey(name);
     }
 
     /** check if track a file by hash.
@@ -82,7 +288,7 @@ public class Commit implements Serializable {
      *  @return true if tracked, false otherwise
      */
     public Boolean containsHash(String hash) {
-        return _blobs.containsValue(hash);
+        return blobs().containsValue(hash);
     }
 
     /** get the hash of a blob.
@@ -90,10 +296,7 @@ public class Commit implements Serializable {
      * @return hash of the blob
      */
     public String getHash(String name) {
-        if (_blobs.containsKey(name)) {
-            return _blobs.get(name);
-        }
-        return null;
+        return blobs().get(name);
     }
 
 
@@ -132,11 +335,12 @@ public class Commit implements Serializable {
         return _parent;
     }
 
-    /** Blobs getter.
+    /** Blobs getter. A commit read from a file may be shared through the
+     *  cache, so its blobs must not be changed.
      *  @return blobs
      */
     public HashMap<String, String> getBlobs() {
-        return _blobs;
+        return blobs();
     }
 
     /** Blobs setter.
@@ -144,6 +348,29 @@ public class Commit implements Serializable {
      */
     public void setBlobs(HashMap<String, String> blobs) {
         _blobs = new HashMap<>(blobs);
+        _tree = null;
+        _table = null;
+        _headerOnly = false;
+    }
+
+    /** Root tree getter. Blobs given as a map are stored as trees first.
+     *  @return hash of the root tree, or null if there are no files
+     */
+    public synchronized String getTree() {
+        if (_tree == null && !blobs().isEmpty()) {
+            _tree = Tree.update(null, blobs());
+        }
+        return _tree;
+    }
+
+    /** Root tree setter.
+     *  @param tree hash of the root tree, or null if there are no files
+     */
+    public void setTree(String tree) {
+        _tree = tree;
+        _blobs = null;
+        _table = null;
+        _headerOnly = false;
     }
 
     /** Hash getter.
@@ -0,0 +1,103 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Least recently used commits, kept so that a command reading the same
+ * commit many times, as merge does, decodes it once. The cache is bounded
+ * by weight rather than count: a commit weighs one plus the number of its
+ * blobs that have been read, so a few huge snapshots cannot pin the heap.
+ * Commits are only added by Commit, which never changes a commit it has
+ * read, so cached commits are shared between callers and threads.
+ * @author Tim Li
+ */
+class CommitCache {
+
+    /** Config key of the largest total weight kept. */
+    static final String MAX_WEIGHT = "core.commitCacheWeight";
+    /** Default of core.commitCacheWeight. */
+    static final int DEFAULT_MAX_WEIGHT = 1 << 18;
+    /** Name of the counter of lookups that found their commit. */
+    static final String HITS = "commit cache hits";
+    /** Name of the counter of lookups that did not. */
+    static final String MISSES = "commit cache misses";
+    /** Name of the counter of commits dropped to make room. */
+    static final String EVICTIONS = "commit cache evictions";
+
+    /** Cached commits and their weights, least recently used first. */
+    private LinkedHashMap<String, Entry> _entries;
+    /** Largest total weight kept. */
+    private long _maxWeight;
+    /** Total weight of the cached commits. */
+    private long _weight;
+
+    /** An empty cache.
+     * @param maxWeight largest total weight kept
+     */
+    CommitCache(long maxWeight) {
+        _entries = new LinkedHashMap<>(16, 0.75f, true);
+        _maxWeight = maxWeight;
+    }
+
+    /** Find a commit, counting a hit or a miss.
+     * @param hash commit hash
+     * @return the commit, or null if it is not cached
+     */
+    synchronized Commit get(String hash) {
+        Entry entry = _entries.get(hash);
+        Stats.add(entry == null ? MISSES : HITS, 1);
+        return entry == null ? null : entry._commit;
+    }
+
+    /** Cache a commit, or weigh it again if it is cached already, and
+     * drop the least recently used commits while over the limit. A
+     * commit heavier than the limit on its own is not kept.
+     * @param commit commit read from its file
+     */
+    synchronized void put(Commit commit) {
+        Entry old = _entries.remove(commit.hash());
+        if (old != null) {
+            _weight -= old._weight;
+        }
+        long weight = commit.weight();
+        if (weight > _maxWeight) {
+            return;
+        }
+        _entries.put(commit.hash(), new Entry(commit, weight));
+        _weight += weight;
+        Iterator<Map.Entry<String, Entry>> eldest =
+                _entries.entrySet().iterator();
+        while (_weight > _maxWeight) {
+            _weight -= eldest.next().getValue()._weight;
+            eldest.remove();
+            Stats.add(EVICTIONS, 1);
+        }
+    }
+
+    /** Whether a commit is cached, without counting a lookup.
+     * @param hash commit hash
+     * @return yes or no
+     */
+    synchronized boolean contains(String hash) {
+        return _entries.containsKey(hash);
+    }
+
+    /** A cached commit and the weight it was added with. */
+    private static class Entry {
+
+        /** The commit. */
+        private Commit _commit;
+        /** Its weight when added. */
+        private long _weight;
+
+        /** An entry.
+         * @param commit the commit
+         * @param weight its weight
+         */
+        Entry(Commit commit, long weight) {
+            _commit = commit;
+            _weight = weight;
+        }
+    }
+}
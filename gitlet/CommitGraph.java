@@ -0,0 +1,448 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/** The shape of the history without the commits themselves: for each
+ * commit, its hash, the positions of its parents, its generation number
+ * and its time, in a file that is memory-mapped when first used. Ancestry
+ * questions are answered from it alone. A commit is always recorded after
+ * its parents, so records are only ever appended, and a parent is always
+ * at a lower position than its children.
+ *
+ * The generation of a root commit is 1, and of any other commit one more
+ * than the largest generation of its parents. A commit can only be an
+ * ancestor of commits with a larger generation, which lets searches stop
+ * early.
+ *
+ * The file is a four byte header and a version, then a fixed-width record
+ * per commit: the hash, both parent positions (-1 if absent), the
+ * generation and the time. A record torn by a crash is ignored when the
+ * file is read, and dropped when it is next appended to. The file is
+ * only created or written when a commit is added, so reading it with
+ * find leaves the repository as it was.
+ * @author Tim Li
+ */
+class CommitGraph {
+
+    /** File location. */
+    static final File FILE = new File(".gitlet/commit-graph");
+    /** Position of a missing parent. */
+    static final int NONE = -1;
+    /** Header of the file. */
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    /** Format version of the file. */
+    private static final int VERSION = 1;
+    /** Length of the header and version. */
+    private static final int HEADER = 8;
+    /** Length of a hash in bytes. */
+    private static final int HASH_BYTES = Utils.UID_LENGTH / 2;
+    /** Length of a record: hash, two parents, generation, time. */
+    private static final int RECORD = HASH_BYTES + 3 * Integer.BYTES
+            + Long.BYTES;
+
+    /** Flag of a commit reached from the first commit of a search. */
+    private static final byte ONE = 1;
+    /** Flag of a commit reached from the second commit of a search. */
+    private static final byte TWO = 2;
+    /** Flag of a commit below a common ancestor already found. */
+    private static final byte STALE = 4;
+    /** Flag of a commit waiting in the queue of a search. */
+    private static final byte QUEUED = 8;
+
+    /** The graph of this repository, opened on first use. */
+    private static CommitGraph _graph;
+
+    /** Records read from the file, then those added since. */
+    private ByteBuffer _records;
+    /** Number of records. */
+    private int _count;
+    /** Open-addressed table of record positions plus one, keyed on the
+     * first bytes of the hash; 0 is an empty slot. */
+    private int[] _slots;
+    /** Stream appending to the file, opened on the first append. */
+    private OutputStream _out;
+
+    /** The graph of the repository in the current directory. Commits that
+     * are not in it yet are added when they are first looked up.
+     * @return graph
+     */
+    static synchronized CommitGraph get() {
+        if (_graph == null) {
+            _graph = new CommitGraph();
+        }
+        return _graph;
+    }
+
+    /** Read the graph file, if there is one. Nothing is written until a
+     * commit is added. */
+    private CommitGraph() {
+        _records = ByteBuffer.allocate(0);
+        if (FILE.length() >= HEADER) {
+            try (RandomAccessFile file = new RandomAccessFile(FILE, "r")) {
+                long whole = HEADER + (file.length() - HEADER) / RECORD
+                        * RECORD;
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                file.getChannel().read(header, 0);
+                if (!Arrays.equals(header.array(), 0, MAGIC.length,
+                        MAGIC, 0, MAGIC.length)
+                        || header.getInt(MAGIC.length) != VERSION) {
+                    throw new IllegalArgumentException("bad commit graph");
+                }
+                _records = file.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, HEADER,
+                        whole - HEADER);
+                _count = (int) ((whole - HEADER) / RECORD);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        _slots = new int[Integer.highestOneBit(Math.max(_count, 8)) * 4];
+        for (int i = 0; i < _count; i += 1) {
+            insert(i);
+        }
+    }
+
+    /** Number of commits in the graph.
+     * @return count
+     */
+    synchronized int size() {
+        return _count;
+    }
+
+    /** Position of a commit, adding it and any of its ancestors that are
+     * missing first.
+     * @param hash commit hash
+     * @return position
+     */
+    synchronized int index(String hash) {
+        int found = find(hash);
+        if (found >= 0) {
+            return found;
+        }
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(hash);
+        while (!pending.isEmpty()) {
+            String next = pending.peek();
+            if (find(next) >= 0) {
+                pending.pop();
+                continue;
+            }
+            Commit commit = Commit.headerFromFile(next);
+            String[] parents = {commit.getParent(),
+                commit.getSecondParent()};
+            boolean ready = true;
+            for (String parent : parents) {
+                if (parent != null && find(parent) < 0) {
+                    pending.push(parent);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                pending.pop();
+                append(next, parents, time(commit));
+            }
+        }
+        return find(hash);
+    }
+
+    /** Record a commit that was just saved, after any of its ancestors
+     * that are missing.
+     * @param hash commit hash
+     * @param commit the commit
+     */
+    synchronized void add(String hash, Commit commit) {
+        if (find(hash) >= 0) {
+            return;
+        }
+        String[] parents = {commit.getParent(), commit.getSecondParent()};
+        for (String parent : parents) {
+            if (parent != null) {
+                index(parent);
+            }
+        }
+        append(hash, parents, time(commit));
+    }
+
+    /** Position of a commit already in the graph.
+     * @param hash commit hash
+     * @return position, or -1 if it is not in the graph
+     */
+    synchronized int find(String hash) {
+        byte[] key = Pack.fromHex(hash);
+        int mask = _slots.length - 1;
+        for (int slot = slot(key) & mask; _slots[slot] != 0;
+             slot = (slot + 1) & mask) {
+            int i = _slots[slot] - 1;
+            if (Arrays.equals(key, 0, HASH_BYTES, hashBytes(i), 0,
+                    HASH_BYTES)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Hash of the Ith commit.
+     * @param i position
+     * @return hash
+     */
+    synchronized String hash(int i) {
+        return Pack.toHex(hashBytes(i));
+    }
+
+    /** Position of the first parent of the Ith commit.
+     * @param i position
+     * @return position, or NONE
+     */
+    synchronized int parent(int i) {
+        return _records.getInt(i * RECORD + HASH_BYTES);
+    }
+
+    /** Position of the second parent of the Ith commit.
+     * @param i position
+     * @return position, or NONE
+     */
+    synchronized int secondParent(int i) {
+        return _records.getInt(i * RECORD + HASH_BYTES + Integer.BYTES);
+    }
+
+    /** Generation number of the Ith commit.
+     * @param i position
+     * @return generation, at least 1
+     */
+    synchronized int generation(int i) {
+        return _records.getInt(i * RECORD + HASH_BYTES + 2 * Integer.BYTES);
+    }
+
+    /** Time of the Ith commit.
+     * @param i position
+     * @return milliseconds since the epoch, or Commit.NO_TIME
+     */
+    synchronized long time(int i) {
+        return _records.getLong(i * RECORD + HASH_BYTES
+                + 3 * Integer.BYTES);
+    }
+
+    /** The best common ancestors of two commits: those that are not
+     * ancestors of another common ancestor. Both sides are painted down
+     * together, highest generation first, so a commit is only taken from
+     * the queue once all of its descendants that can be reached have
+     * been, and its flags are final. A commit reached from both sides is
+     * a best common ancestor unless it is below one already found, and
+     * everything below it is marked stale; the search stops as soon as
+     * only stale commits are left. There is more than one best common
+     * ancestor after a criss-cross merge.
+     * @param one position of the first commit
+     * @param two position of the second commit
+     * @return positions of the best common ancestors, highest generation
+     *         and then latest time first
+     */
+    synchronized int[] mergeBases(int one, int two) {
+        if (one == two) {
+            return new int[] {one};
+        }
+        byte[] flags = new byte[_count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) ->
+                generation(a) != generation(b)
+                ? Integer.compare(generation(b), generation(a))
+                : Integer.compare(b, a));
+        flags[one] = ONE | QUEUED;
+        flags[two] = TWO | QUEUED;
+        queue.add(one);
+        queue.add(two);
+        int live = 2;
+        ArrayList<Integer> found = new ArrayList<>();
+        while (live > 0) {
+            int next = queue.poll();
+            flags[next] &= ~QUEUED;
+            int reached = flags[next] & (ONE | TWO | STALE);
+            if ((reached & STALE) == 0) {
+                live -= 1;
+            }
+            if (reached == (ONE | TWO)) {
+                found.add(next);
+                reached |= STALE;
+            }
+            for (int parent : new int[] {parent(next), secondParent(next)}) {
+                if (parent == NONE || (flags[parent] & reached) == reached) {
+                    continue;
+                }
+                boolean wasLive = (flags[parent] & STALE) == 0;
+                flags[parent] |= reached;
+                if ((flags[parent] & QUEUED) == 0) {
+                    flags[parent] |= QUEUED;
+                    queue.add(parent);
+                    if ((flags[parent] & STALE) == 0) {
+                        live += 1;
+                    }
+                } else if (wasLive && (flags[parent] & STALE) != 0) {
+                    live -= 1;
+                }
+            }
+        }
+        found.sort((a, b) -> generation(a) != generation(b)
+                ? Integer.compare(generation(b), generation(a))
+                : Long.compare(time(b), time(a)));
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Time of a commit as it is recorded.
+     * @param commit the commit
+     * @return milliseconds since the epoch, or Commit.NO_TIME
+     */
+    private static long time(Commit commit) {
+        return commit.getTimestamp() == null ? Commit.NO_TIME
+                : commit.getTimestamp().getTime();
+    }
+
+    /** Record a commit whose parents are recorded already.
+     * @param hash commit hash
+     * @param parents hashes of both parents, null where absent
+     * @param time commit time in milliseconds
+     */
+    private void append(String hash, String[] parents, long time) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD);
+        record.put(Pack.fromHex(hash));
+        int generation = 1;
+        for (String parent : parents) {
+            int i = parent == null ? NONE : find(parent);
+            record.putInt(i);
+            if (i != NONE) {
+                generation = Math.max(generation, generation(i) + 1);
+            }
+        }
+        record.putInt(generation).putLong(time);
+        try {
+            if (_out == null) {
+                _out = openForAppend();
+            }
+            _out.write(record.array());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if ((_count + 1) * RECORD > _records.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(
+                    2 * _records.capacity(), 64 * RECORD));
+            grown.put(_records.duplicate().position(0)
+                    .limit(_count * RECORD));
+            _records = grown;
+        }
+        _records.put(_count * RECORD, record.array());
+        _count += 1;
+        if (2 * _count > _slots.length) {
+            _slots = new int[_slots.length * 2];
+            for (int i = 0; i < _count; i += 1) {
+                insert(i);
+            }
+        } else {
+            insert(_count - 1);
+        }
+    }
+
+    /** Open the file for appending records, creating it if there is none
+     * and dropping a record torn by a crash.
+     * @return stream appending to the file
+     * @throws IOException if the file cannot be written
+     */
+    private static OutputStream openForAppend() throws IOException {
+        if (FILE.length() < HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.put(MAGIC).putInt(VERSION);
+            Files.write(FILE.toPath(), header.array());
+        }
+        try (RandomAccessFile file = new RandomAccessFile(FILE, "rw")) {
+            long whole = HEADER + (file.length() - HEADER) / RECORD
+                    * RECORD;
+            if (whole != file.length()) {
+                file.setLength(whole);
+            }
+        }
+        return new FileOutputStream(FILE, true);
+    }
+
+    /** Add the Ith record to the table of positions.
+     * @param i position
+     */
+    private void insert(int i) {
+        int mask = _slots.length - 1;
+        int slot = slot(hashBytes(i)) & mask;
+        while (_slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        _slots[slot] = i + 1;
+    }
+
+    /** Raw hash of the Ith commit.
+     * @param i position
+     * @return hash bytes
+     */
+    private byte[] hashBytes(int i) {
+        byte[] hash = new byte[HASH_BYTES];
+        _records.get(i * RECORD, hash);
+        return hash;
+    }
+
+    /** First four bytes of a hash, as an int.
+     * @param hash hash bytes
+     * @return slot key
+     */
+    private static int slot(byte[] hash) {
+        return ByteBuffer.wrap(hash, 0, Integer.BYTES).getInt();
+    }
+
+    /** Rewrite the graph without the commits for which KEEP is false. A
+     * parent left out becomes NONE; generations are kept as they were.
+     * @param keep which commits to keep
+     */
+    static synchronized void retain(Predicate<String> keep) {
+        CommitGraph graph = get();
+        int[] moved = new int[graph._count];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        bytes.writeBytes(header.put(MAGIC).putInt(VERSION).array());
+        int kept = 0;
+        for (int i = 0; i < graph._count; i += 1) {
+            if (!keep.test(graph.hash(i))) {
+                moved[i] = NONE;
+                continue;
+            }
+            moved[i] = kept;
+            kept += 1;
+            ByteBuffer record = ByteBuffer.allocate(RECORD);
+            record.put(graph.hashBytes(i));
+            for (int parent : new int[] {graph.parent(i),
+                graph.secondParent(i)}) {
+                record.putInt(parent == NONE ? NONE : moved[parent]);
+            }
+            record.putInt(graph.generation(i)).putLong(graph.time(i));
+            bytes.writeBytes(record.array());
+        }
+        try {
+            if (graph._out != null) {
+                graph._out.close();
+            }
+            File temp = new File(FILE.getPath() + ".tmp");
+            Files.write(temp.toPath(), bytes.toByteArray());
+            Files.move(temp.toPath(), FILE.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        _graph = null;
+    }
+}
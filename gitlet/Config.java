@@ -0,0 +1,103 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+/** Per-repository settings, stored as plain key=value lines so that they
+ * can be read and edited by hand.
+ * @author Tim Li
+ */
+public class Config {
+
+    /** File location. */
+    public static final File FILE = new File(".gitlet/config");
+    /** Key of the on-disk format version of the repository. */
+    public static final String FORMAT = "core.format";
+    /** Key of the number of threads that scan and hash working files. */
+    public static final String PARALLELISM = "core.parallelism";
+    /** The settings themselves. */
+    private Properties _props;
+
+    public Config() {
+        _props = new Properties();
+    }
+
+    /** Persistence function that loads the config. A repository without a
+     * config file gets the defaults of every setting.
+     * @return config object
+     */
+    public static Config fromFile() {
+        Config config = new Config();
+        if (FILE.exists()) {
+            try (InputStream in = new FileInputStream(FILE)) {
+                config._props.load(in);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        return config;
+    }
+
+    /** Persistence function that saves the config. */
+    public void saveFile() {
+        try (OutputStream out = new FileOutputStream(FILE)) {
+            _props.store(out, "gitlet repository config");
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Get a setting.
+     * @param key name of the setting
+     * @param otherwise value returned if the setting is absent
+     * @return value of the setting
+     */
+    public String get(String key, String otherwise) {
+        return _props.getProperty(key, otherwise);
+    }
+
+    /** Get an integer setting.
+     * @param key name of the setting
+     * @param otherwise value returned if the setting is absent
+     * @return value of the setting
+     */
+    public int getInt(String key, int otherwise) {
+        String value = _props.getProperty(key);
+        if (value == null) {
+            return otherwise;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new GitletException("Bad value for " + key + ": " + value);
+        }
+    }
+
+    /** A pool of core.parallelism threads, or of one per available
+     * processor if it is not set.
+     * @return pool, to be shut down by the caller
+     */
+    public ForkJoinPool pool() {
+        int threads = getInt(PARALLELISM,
+                Runtime.getRuntime().availableProcessors());
+        if (threads < 1) {
+            throw new GitletException("Bad value for " + PARALLELISM
+                    + ": " + threads);
+        }
+        return new ForkJoinPool(threads);
+    }
+
+    /** Change a setting.
+     * @param key name of the setting
+     * @param value new value
+     */
+    public void set(String key, String value) {
+        _props.setProperty(key, value);
+    }
+}
@@ -0,0 +1,208 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/** Binary deltas between two versions of a blob. A delta is a list of
+ * instructions that rebuild the target from the base: a copy takes a run
+ * of bytes out of the base, an insert carries literal bytes. Runs are found
+ * by indexing the base in fixed-size blocks and sliding a rolling hash
+ * over the target, so creating a delta is linear in the size of both.
+ * @author Tim Li
+ */
+class Delta {
+
+    /** Size of the blocks of the base that are indexed. */
+    private static final int BLOCK = 16;
+    /** Multiplier of the rolling hash. */
+    private static final int PRIME = 31;
+    /** PRIME to the power BLOCK - 1, to roll a byte out of the hash. */
+    private static final int OUT;
+    /** Opcode of an insert instruction. */
+    private static final int INSERT = 0;
+    /** Opcode of a copy instruction. */
+    private static final int COPY = 1;
+    /** Most candidates of one bucket compared against the target. */
+    private static final int MAX_TRIES = 8;
+
+    static {
+        int out = 1;
+        for (int i = 1; i < BLOCK; i += 1) {
+            out *= PRIME;
+        }
+        OUT = out;
+    }
+
+    /** Create the delta that turns BASE into TARGET.
+     * @param base earlier version
+     * @param target later version
+     * @return delta instructions
+     */
+    static byte[] create(byte[] base, byte[] target) {
+        int blocks = base.length / BLOCK;
+        int mask = Integer.highestOneBit(Math.max(blocks, 1)) * 2 - 1;
+        int[] heads = new int[mask + 1];
+        int[] next = new int[blocks];
+        Arrays.fill(heads, -1);
+        for (int b = 0; b < blocks; b += 1) {
+            int bucket = hash(base, b * BLOCK) & mask;
+            next[b] = heads[bucket];
+            heads[bucket] = b;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int pending = 0;
+        int i = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (blocks > 0 && i + BLOCK <= target.length) {
+            int bestLength = 0;
+            int bestOffset = 0;
+            int tries = 0;
+            for (int b = heads[h & mask]; b >= 0 && tries < MAX_TRIES;
+                 b = next[b], tries += 1) {
+                int length = matchLength(base, b * BLOCK, target, i);
+                if (length > bestLength) {
+                    bestLength = length;
+                    bestOffset = b * BLOCK;
+                }
+            }
+            if (bestLength >= BLOCK) {
+                int back = 0;
+                while (i - back > pending && bestOffset - back > 0
+                        && base[bestOffset - back - 1]
+                        == target[i - back - 1]) {
+                    back += 1;
+                }
+                insert(out, target, pending, i - back);
+                copy(out, bestOffset - back, bestLength + back);
+                i += bestLength;
+                pending = i;
+                if (i + BLOCK <= target.length) {
+                    h = hash(target, i);
+                }
+            } else {
+                if (i + BLOCK < target.length) {
+                    h = (h - target[i] * OUT) * PRIME + target[i + BLOCK];
+                }
+                i += 1;
+            }
+        }
+        insert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Rebuild a target from its base and delta.
+     * @param base earlier version
+     * @param delta instructions made by create
+     * @param size size of the target
+     * @return target
+     */
+    static byte[] apply(byte[] base, byte[] delta, int size) {
+        byte[] target = new byte[size];
+        int at = 0;
+        int[] pos = {0};
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]];
+            pos[0] += 1;
+            if (op == COPY) {
+                int offset = readVarint(delta, pos);
+                int length = readVarint(delta, pos);
+                System.arraycopy(base, offset, target, at, length);
+                at += length;
+            } else {
+                int length = readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], target, at, length);
+                pos[0] += length;
+                at += length;
+            }
+        }
+        if (at != size) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+        return target;
+    }
+
+    /** Hash of the BLOCK bytes of DATA starting at AT.
+     * @param data bytes
+     * @param at start of the block
+     * @return hash
+     */
+    private static int hash(byte[] data, int at) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            h = h * PRIME + data[at + k];
+        }
+        return h;
+    }
+
+    /** Length of the common run of BASE from FROM and TARGET from AT.
+     * @param base earlier version
+     * @param from start in the base
+     * @param target later version
+     * @param at start in the target
+     * @return run length
+     */
+    private static int matchLength(byte[] base, int from, byte[] target,
+                                   int at) {
+        int n = Math.min(base.length - from, target.length - at);
+        int mismatch = Arrays.mismatch(base, from, from + n,
+                target, at, at + n);
+        return mismatch < 0 ? n : mismatch;
+    }
+
+    /** Emit an insert of TARGET from START to END, if it is not empty.
+     * @param out instructions
+     * @param target later version
+     * @param start first byte
+     * @param end byte past the last
+     */
+    private static void insert(ByteArrayOutputStream out, byte[] target,
+                               int start, int end) {
+        if (end > start) {
+            out.write(INSERT);
+            writeVarint(out, end - start);
+            out.write(target, start, end - start);
+        }
+    }
+
+    /** Emit a copy of LENGTH bytes of the base from OFFSET.
+     * @param out instructions
+     * @param offset start in the base
+     * @param length run length
+     */
+    private static void copy(ByteArrayOutputStream out, int offset,
+                             int length) {
+        out.write(COPY);
+        writeVarint(out, offset);
+        writeVarint(out, length);
+    }
+
+    /** Write a non-negative int seven bits at a time.
+     * @param out instructions
+     * @param value value
+     */
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** Read an int written by writeVarint.
+     * @param data instructions
+     * @param pos position, advanced past the value
+     * @return value
+     */
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = data[pos[0]];
+            pos[0] += 1;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
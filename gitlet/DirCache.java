@@ -0,0 +1,242 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** The listing of each working directory as of its last stat: the names
+ * of the regular files and of the directories in it. Adding, removing or
+ * renaming an entry changes the modification time of its directory, so a
+ * directory whose modification time and inode have not changed is not
+ * listed again, and an unchanged tree costs one stat per directory rather
+ * than one per file. Like the stat cache it is only a cache, and a
+ * directory modified less than StatCache.RACY_MILLIS before it was listed
+ * is not recorded.
+ *
+ * It is stored as its header, then a count and, for each directory in
+ * order, its path, modification time in nanoseconds, inode, and the
+ * counted names of its files and then of its directories.
+ * @author Tim Li
+ */
+class DirCache {
+
+    /** Header of the file. */
+    static final byte[] MAGIC = {'G', 'D', 'C', '1'};
+    /** File location. */
+    static final File FILE = new File(".gitlet/dir-cache");
+    /** Name of the counter of directories read. */
+    static final String LISTED = "directories listed";
+    /** Name of the counter of directories whose listing was cached. */
+    static final String CLEAN = "directories clean";
+
+    /** Entries, by path relative to the working directory, "" for it. */
+    private Map<String, Entry> _entries;
+    /** Whether the entries differ from the file. */
+    private volatile boolean _changed;
+
+    /** An empty cache. */
+    DirCache() {
+        _entries = new ConcurrentHashMap<>();
+    }
+
+    /** Load the cache, or an empty one if it cannot be read.
+     * @return cache
+     */
+    static DirCache fromFile() {
+        DirCache cache = new DirCache();
+        if (!FILE.isFile()) {
+            return cache;
+        }
+        try {
+            Codec.Reader in = new Codec.Reader(Utils.readContents(FILE));
+            in.readHeader(MAGIC);
+            for (int i = in.readVarint(); i > 0; i -= 1) {
+                String path = in.readString();
+                long mtime = in.readLong();
+                long inode = in.readLong();
+                cache._entries.put(path, new Entry(mtime, inode,
+                        readNames(in), readNames(in)));
+            }
+        } catch (IllegalArgumentException e) {
+            cache._entries.clear();
+        }
+        return cache;
+    }
+
+    /** Save the cache, if it has changed. */
+    void saveFile() {
+        if (!_changed) {
+            return;
+        }
+        String[] paths = _entries.keySet().toArray(new String[0]);
+        Arrays.sort(paths);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            Codec.writeVarint(out, paths.length);
+            for (String path : paths) {
+                Entry entry = _entries.get(path);
+                Codec.writeString(out, path);
+                out.writeLong(entry._mtime);
+                out.writeLong(entry._inode);
+                writeNames(out, entry._files);
+                writeNames(out, entry._dirs);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Utils.writeContents(FILE, bytes.toByteArray());
+        _changed = false;
+    }
+
+    /** The regular files and directories in a working directory, from the
+     * cache if its stat has not changed and by listing it otherwise. Safe
+     * to call from several threads at once.
+     * @param root root of the working directory
+     * @param dir directory under it
+     * @return names of its files, then names of its directories
+     */
+    List<List<String>> list(Path root, Path dir) {
+        String name = root.relativize(dir).toString()
+                .replace(File.separatorChar, '/');
+        long[] stat = stat(dir);
+        Entry cached = _entries.get(name);
+        if (cached != null && stat != null && cached._mtime == stat[0]
+                && cached._inode == stat[1]) {
+            Stats.add(CLEAN, 1);
+            return List.of(cached._files, cached._dirs);
+        }
+        Stats.add(LISTED, 1);
+        List<String> files = new ArrayList<>();
+        List<String> dirs = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry,
+                            BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    dirs.add(entry.getFileName().toString());
+                } else if (attrs.isRegularFile()) {
+                    files.add(entry.getFileName().toString());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        long racy = TimeUnit.MILLISECONDS.toNanos(
+                System.currentTimeMillis() - StatCache.RACY_MILLIS);
+        if (stat != null && stat[0] < racy) {
+            _entries.put(name, new Entry(stat[0], stat[1], files, dirs));
+            _changed = true;
+        } else if (_entries.remove(name) != null) {
+            _changed = true;
+        }
+        return List.of(files, dirs);
+    }
+
+    /** Forget every directory not in PATHS.
+     * @param paths paths to keep
+     */
+    void retain(Collection<String> paths) {
+        if (_entries.keySet().retainAll(new HashSet<>(paths))) {
+            _changed = true;
+        }
+    }
+
+    /** The modification time and inode of a directory.
+     * @param dir directory
+     * @return both, or null if they cannot be read
+     */
+    private static long[] stat(Path dir) {
+        try {
+            Map<String, Object> unix = Files.readAttributes(dir,
+                    "unix:lastModifiedTime,ino", LinkOption.NOFOLLOW_LINKS);
+            return new long[] {((FileTime) unix.get("lastModifiedTime"))
+                    .to(TimeUnit.NANOSECONDS), (Long) unix.get("ino")};
+        } catch (UnsupportedOperationException e) {
+            try {
+                BasicFileAttributes basic = Files.readAttributes(dir,
+                        BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                return new long[] {basic.lastModifiedTime()
+                        .to(TimeUnit.NANOSECONDS), 0};
+            } catch (IOException ioe) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Read a counted list of names.
+     * @param in source
+     * @return names
+     */
+    private static List<String> readNames(Codec.Reader in) {
+        List<String> names = new ArrayList<>();
+        for (int i = in.readVarint(); i > 0; i -= 1) {
+            names.add(in.readString());
+        }
+        return names;
+    }
+
+    /** Write a counted list of names.
+     * @param out destination
+     * @param names names
+     * @throws IOException if they cannot be written
+     */
+    private static void writeNames(DataOutputStream out, List<String> names)
+            throws IOException {
+        Codec.writeVarint(out, names.size());
+        for (String name : names) {
+            Codec.writeString(out, name);
+        }
+    }
+
+    /** The stat and listing of a directory. */
+    private static class Entry {
+
+        /** Modification time in nanoseconds since the epoch. */
+        private final long _mtime;
+        /** Inode, or 0 where there is none. */
+        private final long _inode;
+        /** Names of its regular files. */
+        private final List<String> _files;
+        /** Names of its directories. */
+        private final List<String> _dirs;
+
+        /** An entry.
+         * @param mtime modification time in nanoseconds
+         * @param inode inode
+         * @param files names of its regular files
+         * @param dirs names of its directories
+         */
+        Entry(long mtime, long inode, List<String> files, List<String> dirs) {
+            _mtime = mtime;
+            _inode = inode;
+            _files = files;
+            _dirs = dirs;
+        }
+    }
+}
@@ -1,15 +1,30 @@
 package gitlet;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 /** The main management Gitlet class that manages Gitlet commands and
  * information.
@@ -21,12 +36,31 @@ public class Gitlet {
     public static final File GITLET_FOLDER = new File(".gitlet");
     /** Commit folder location. */
     public static final File COMMIT_FOLDER = new File(".gitlet/commit");
+    /** Tree folder location. */
+    public static final File TREE_FOLDER = new File(".gitlet/tree");
     /** Blob folder location. */
     public static final File BLOB_FOLDER = new File(".gitlet/blob");
+    /** Chunk folder location. */
+    public static final File CHUNK_FOLDER = new File(".gitlet/chunk");
+    /** Pack folder location. */
+    public static final File PACK_FOLDER = new File(".gitlet/pack");
     /** Reference file location. */
     private static final File REF = Reference.FILE;
     /** Stage file location. */
     private static final File STAGE = Stage.FILE;
+    /** On-disk format written by this version; 1 shards the object
+     * folders by hash prefix, 2 and 3 re-encode commits, 4 stores their
+     * files in trees, 5 adds the commit graph and 6 the message index. */
+    static final int FORMAT_VERSION = 6;
+
+    /** Format of the dates in logs, which can be shared between threads. */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+            .ofPattern("EEE MMM d HH:mm:ss yyyy Z")
+            .withZone(ZoneId.systemDefault());
+    /** Number of commits global-log decodes at once. */
+    private static final int LOG_BATCH = 1024;
+    /** Characters that make an operand of add a glob. */
+    private static final Pattern GLOB = Pattern.compile("[*?\\[{]");
 
     public Gitlet() { }
 
@@ -39,6 +73,9 @@ public class Gitlet {
             if (!COMMIT_FOLDER.exists()) {
                 COMMIT_FOLDER.mkdir();
             }
+            if (!TREE_FOLDER.exists()) {
+                TREE_FOLDER.mkdir();
+            }
             if (!BLOB_FOLDER.exists()) {
                 BLOB_FOLDER.mkdir();
             }
@@ -55,8 +92,9 @@ public class Gitlet {
 
     /** Initializes the git repository. */
     public void init() {
+        boolean existed = GITLET_FOLDER.exists();
         try {
-            if (GITLET_FOLDER.exists()) {
+            if (existed) {
                 throw new GitletException();
             }
         } catch (GitletException g) {
@@ -78,36 +116,131 @@ public class Gitlet {
 
         first.saveFile(hash);
 
+        if (!existed) {
+            Config config = new Config();
+            config.set(Config.FORMAT, Integer.toString(FORMAT_VERSION));
+            config.saveFile();
+        }
+
         ref.saveFile();
         stage.saveFile();
     }
 
-    /** Add a file to the Gitlet repo.
-     * @param name name of the file needs to be added
+    /** Brings a repository written by an earlier version up to
+     * FORMAT_VERSION, in place. */
+    public void upgrade() {
+        Config config = Config.fromFile();
+        int format = config.getInt(Config.FORMAT, 0);
+        if (format >= FORMAT_VERSION) {
+            return;
+        }
+        if (format < 1) {
+            ObjectStore.shard(COMMIT_FOLDER);
+            ObjectStore.shard(BLOB_FOLDER);
+        }
+        if (format < 2) {
+            Reference.fromFile().saveFile();
+            Stage.fromFile().saveFile();
+        }
+        if (format < 4) {
+            for (String hash : ObjectStore.commitIds()) {
+                Commit commit = Commit.fromFile(hash);
+                ObjectStore.writeCommit(hash, commit.encode());
+            }
+            if (!ObjectStore.packs().isEmpty()) {
+                ObjectStore.repack();
+            }
+        }
+        if (format < 5) {
+            CommitGraph graph = CommitGraph.get();
+            for (String hash : ObjectStore.commitIds()) {
+                graph.index(hash);
+            }
+        }
+        if (format < 6) {
+            for (String hash : ObjectStore.commitIds()) {
+                MessageIndex.add(hash,
+                        Commit.headerFromFile(hash).getMessage());
+            }
+        }
+        config.set(Config.FORMAT, Integer.toString(FORMAT_VERSION));
+        config.saveFile();
+    }
+
+    /** Add files to the staging area. Each of NAMES is a file, a
+     * directory, standing for every working file under it, or a glob
+     * matched against the paths of the working files. The files are
+     * stored on the pool of the working tree, and the stage written once.
+     * @param names files, directories and globs
      */
-    public void add(String name) {
+    public void add(List<String> names) {
         Reference ref = Reference.fromFile();
         Stage stage = Stage.fromFile();
-
-        if (!Utils.join(ref.getCwd(), name).exists()) {
-            throw new GitletException("File does not exist.");
-        }
-
         Commit head = Commit.fromFile(ref.getHead());
-        File file = Utils.join(ref.getCwd(), name);
-        String hash = hash(file);
+        Map<String, String> hashes;
+        try (WorkingTree tree = new WorkingTree(ref.getCwd())) {
+            hashes = tree.store(expand(tree, ref.getCwd(), names));
+        }
 
-        if (stage.getRemovals().containsKey(name)) {
-            stage.getRemovals().remove(name);
-        } else if (!head.containsFile(name) || head.getHash(name)
-                .compareTo(hash) != 0) {
-            stage.add(name, file, hash);
+        for (Map.Entry<String, String> file : hashes.entrySet()) {
+            String name = file.getKey();
+            String hash = file.getValue();
+            if (stage.getRemovals().containsKey(name)) {
+                stage.getRemovals().remove(name);
+            } else if (!head.containsFile(name) || head.getHash(name)
+                    .compareTo(hash) != 0) {
+                stage.add(name, hash);
+            }
         }
 
         ref.saveFile();
         stage.saveFile();
     }
 
+    /** The working files named by the operands of add, as paths relative
+     * to the working directory, so that ./a.txt and a.txt are one file.
+     * @param tree working tree
+     * @param cwd working directory
+     * @param names files, directories and globs
+     * @return paths of the files
+     */
+    private static Set<String> expand(WorkingTree tree, File cwd,
+                                      List<String> names) {
+        Path root = cwd.toPath().toAbsolutePath();
+        Set<String> files = new TreeSet<>();
+        for (String name : names) {
+            File file = Utils.join(root.toFile(), name);
+            String relative = root.relativize(file.toPath().toAbsolutePath()
+                    .normalize()).toString()
+                    .replace(File.separatorChar, '/');
+            if (file.isFile()) {
+                files.add(relative);
+            } else if (file.isDirectory()) {
+                for (String path : tree.files()) {
+                    if (relative.isEmpty()
+                            || path.startsWith(relative + "/")) {
+                        files.add(path);
+                    }
+                }
+            } else if (GLOB.matcher(name).find()) {
+                PathMatcher glob = FileSystems.getDefault()
+                        .getPathMatcher("glob:" + name);
+                int before = files.size();
+                for (String path : tree.files()) {
+                    if (glob.matches(Paths.get(path))) {
+                        files.add(path);
+                    }
+                }
+                if (files.size() == before) {
+                    throw new GitletException("File does not exist.");
+                }
+            } else {
+                throw new GitletException("File does not exist.");
+            }
+        }
+        return files;
+    }
+
     /** Commit to the Gitlet repo with a commit message.
      * @param message message of the commit
      */
@@ -128,21 +261,7 @@ public class Gitlet {
         Commit newCommit = new Commit(message, ref.getHead(),
                 new Date());
 
-        HashMap<String, String> blobs = head.getBlobs();
-        HashMap<String, String> map = stage.getAdditions();
-        for (String name : map.keySet()) {
-            if (blobs.containsKey(name)) {
-                blobs.replace(name, map.get(name));
-            } else {
-                blobs.put(name, map.get(name));
-            }
-        }
-        map = stage.getRemovals();
-        for (String name : map.keySet()) {
-            blobs.remove(name);
-        }
-
-        newCommit.setBlobs(blobs);
+        newCommit.setTree(Tree.update(head.getTree(), changes(stage)));
         stage.clear();
 
         String hash = hash(newCommit);
@@ -167,7 +286,7 @@ public class Gitlet {
             throw new GitletException("No reason to remove the file.");
         }
 
-        stage.remove(Utils.join(ref.getCwd(), name), head);
+        stage.remove(ref.getCwd(), name, head);
 
         ref.saveFile();
         stage.saveFile();
@@ -177,62 +296,170 @@ public class Gitlet {
     public void log() {
         Reference ref = Reference.fromFile();
 
-        Commit current = Commit.fromFile(ref.getHead());
+        Commit current = Commit.headerFromFile(ref.getHead());
         while (current != null) {
             System.out.println("===");
             System.out.println("commit " + current.hash());
 
-            SimpleDateFormat fmt = new SimpleDateFormat(
-                    "EEE MMM d HH:mm:ss yyyy Z");
-            System.out.println("Date: " + fmt.format(
-                    current.getTimestamp()));
+            System.out.println("Date: " + DATE_FORMAT.format(
+                    current.getTimestamp().toInstant()));
 
             System.out.println(current.getMessage());
             System.out.println();
 
-            current = Commit.fromFile(current.getParent());
+            current = Commit.headerFromFile(current.getParent());
         }
 
     }
 
 
     /** Like log, except displays information about all commits
-     * ever made. The order of the commits does not matter.*/
-    public void globalLog() {
-        for (String file : Utils.plainFilenamesIn(COMMIT_FOLDER)) {
-            Commit current = Commit.fromFile(file);
+     * ever made, in order of their ids. Ids are listed a shard at a time
+     * and each batch of commits is decoded in parallel, then written out
+     * in order, so memory does not grow with the history.
+     * @param options --limit N to stop after N commits, and --since DATE
+     *                to skip commits made before DATE, an ISO date or
+     *                date and time
+     */
+    public void globalLog(String... options) {
+        long limit = Long.MAX_VALUE;
+        long since = Long.MIN_VALUE;
+        for (int i = 0; i < options.length; i += 2) {
+            if (i + 1 == options.length) {
+                throw new GitletException("Incorrect operands.");
+            }
+            if (options[i].equals("--limit")) {
+                limit = parseLimit(options[i + 1]);
+            } else if (options[i].equals("--since")) {
+                since = parseSince(options[i + 1]);
+            } else {
+                throw new GitletException("Incorrect operands.");
+            }
+        }
 
-            System.out.println("===");
-            System.out.println("commit " + current.hash());
+        BufferedWriter out = new BufferedWriter(
+                new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            List<String> batch = new ArrayList<>();
+            for (int shard = 0; shard < 1 << 8 && limit > 0; shard += 1) {
+                batch.addAll(ObjectStore.commitIds(
+                        String.format("%02x", shard)));
+                if (batch.size() >= LOG_BATCH || shard == 0xff) {
+                    limit -= printBatch(out, batch, since, limit);
+                    batch.clear();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
 
-            SimpleDateFormat fmt = new SimpleDateFormat(
-                    "EEE MMM d HH:mm:ss yyyy Z");
-            System.out.println("Date: " + fmt.format(
-                    current.getTimestamp()));
+    /** Print the log entries of a batch of commits for global-log. Commit
+     * times for --since come from the commit graph where it has them and
+     * from the commit header otherwise; the graph is never added to, so
+     * global-log writes nothing to the repository.
+     * @param out destination
+     * @param batch commit hashes, in order
+     * @param since time before which commits are skipped, in milliseconds
+     * @param limit largest number of entries to print
+     * @return number of entries printed
+     * @throws IOException if they cannot be written
+     */
+    private int printBatch(Writer out, List<String> batch, long since,
+                           long limit) throws IOException {
+        List<String> hashes = batch;
+        if (since != Long.MIN_VALUE) {
+            CommitGraph graph = CommitGraph.get();
+            hashes = new ArrayList<>();
+            for (String hash : batch) {
+                int i = graph.find(hash);
+                Date time = i >= 0 ? new Date(graph.time(i))
+                        : Commit.headerFromFile(hash).getTimestamp();
+                if (time != null && time.getTime() >= since) {
+                    hashes.add(hash);
+                }
+            }
+        }
+        if (hashes.size() > limit) {
+            hashes = hashes.subList(0, (int) limit);
+        }
+        List<String> entries = hashes.parallelStream()
+                .map(hash -> logEntry(Commit.headerFromFile(hash)))
+                .toList();
+        for (String entry : entries) {
+            out.write(entry);
+        }
+        return entries.size();
+    }
 
-            System.out.println(current.getMessage());
-            System.out.println();
+    /** The log entry of a commit, as global-log prints it.
+     * @param commit commit
+     * @return lines of the entry
+     */
+    private static String logEntry(Commit commit) {
+        return "===\n"
+                + "commit " + commit.hash() + "\n"
+                + "Date: " + DATE_FORMAT.format(
+                        commit.getTimestamp().toInstant()) + "\n"
+                + commit.getMessage() + "\n"
+                + "\n";
+    }
+
+    /** Read the operand of --limit.
+     * @param value operand
+     * @return number of commits, at least 0
+     */
+    private static long parseLimit(String value) {
+        try {
+            long limit = Long.parseLong(value);
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            /* Reported below. */
         }
+        throw new GitletException("Incorrect operands.");
     }
 
+    /** Read the operand of --since: a date, meaning its start in the
+     * local time zone, a local date and time, or a date and time with an
+     * offset.
+     * @param value operand
+     * @return time in milliseconds since the epoch
+     */
+    private static long parseSince(String value) {
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            return LocalDate.parse(value).atStartOfDay(zone)
+                    .toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            /* Try the next form. */
+        }
+        try {
+            return LocalDateTime.parse(value).atZone(zone)
+                    .toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            /* Try the next form. */
+        }
+        try {
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new GitletException("Incorrect operands.");
+        }
+    }
 
     /** Given commit message, find the commit id.
      * @param message message of the commit
      */
     public void find(String message) {
         try {
-            Boolean found = false;
-
-            for (String file : Utils.plainFilenamesIn(COMMIT_FOLDER)) {
-                Commit current = Commit.fromFile(file);
-
-                if (current.getMessage().compareTo(message) == 0) {
-                    System.out.println(current.hash());
-                    found = true;
-                }
+            List<String> found = MessageIndex.find(message);
+            for (String hash : found) {
+                System.out.println(hash);
             }
 
-            if (!found) {
+            if (found.isEmpty()) {
                 throw new GitletException("Found no commit with "
                         + "that message.");
             }
@@ -241,62 +468,88 @@ public class Gitlet {
         }
     }
 
+    /** Prints out the ids of all commits whose messages contain every one
+     * of the given words, ignoring case.
+     * @param words words to search for
+     */
+    public void grep(List<String> words) {
+        List<String> found = MessageIndex.grep(words);
+        for (String hash : found) {
+            System.out.println(hash);
+        }
+
+        if (found.isEmpty()) {
+            throw new GitletException("Found no commit with "
+                    + "that message.");
+        }
+    }
+
 
     /** Prints out the repo status. */
     public void status() {
         Reference ref = Reference.fromFile();
         Stage stage = Stage.fromFile();
         Commit head = Commit.fromFile(ref.getHead());
-        System.out.println("=== Branches ===");
-        System.out.println("*" + ref.getCurrent());
-        for (String branch : ref.getBranches().keySet()) {
-            if (branch.compareTo(ref.getCurrent()) != 0) {
-                System.out.println(branch);
+        Sparse sparse = Sparse.fromFile();
+        TreeMap<String, String> changed = new TreeMap<>();
+        TreeSet<String> untracked = new TreeSet<>();
+        try (WorkingTree tree = new WorkingTree(ref.getCwd())) {
+            List<String> tracked = new ArrayList<>();
+            for (String file : tree.files()) {
+                if (head.containsFile(file)) {
+                    tracked.add(file);
+                } else if (!stage.getAdditions().containsKey(file)) {
+                    untracked.add(file);
+                }
             }
-        }
-        HashSet<String> modified = new HashSet<>();
-        HashSet<String> deleted = new HashSet<>();
-        HashSet<String> untracked = new HashSet<>();
-        for (String file : Utils.plainFilenamesIn(ref.getCwd())) {
-            String content = Utils.readContentsAsString(Utils.join(
-                    ref.getCwd(), file));
-            if (head.containsFile(file)) {
-                File blob = Utils.join(BLOB_FOLDER, head.getHash(file));
-                if (content.compareTo(Utils.readContentsAsString(blob))
-                        != 0) {
-                    modified.add(file);
+            List<String> listed = new ArrayList<>(tree.files());
+            for (String file : head.getBlobs().keySet()) {
+                if (tree.ignored(file) && sparse.includes(file)
+                        && Utils.join(ref.getCwd(), file).isFile()) {
+                    tracked.add(file);
+                    listed.add(file);
+                }
+            }
+            for (Map.Entry<String, String> file
+                    : tree.hashes(tracked).entrySet()) {
+                if (!file.getValue().equals(head.getHash(file.getKey()))) {
+                    changed.put(file.getKey(), " (modified)");
                 }
-            } else if (!stage.getAdditions().containsKey(file)) {
-                untracked.add(file);
             }
+            tree.cache().retain(listed);
         }
         for (String file : head.getBlobs().keySet()) {
             if (!Utils.join(ref.getCwd(), file).exists()
-                    && !stage.getRemovals().containsKey(file)) {
-                deleted.add(file);
+                    && !stage.getRemovals().containsKey(file)
+                    && sparse.includes(file)) {
+                changed.put(file, " (deleted)");
+            }
+        }
+        System.out.println("=== Branches ===");
+        System.out.println("*" + ref.getCurrent());
+        for (String branch : new TreeSet<>(ref.getBranches().keySet())) {
+            if (branch.compareTo(ref.getCurrent()) != 0) {
+                System.out.println(branch);
             }
         }
         System.out.println("\n=== Staged Files ===");
-        for (String file : stage.getAdditions().keySet()) {
+        for (String file : new TreeSet<>(stage.getAdditions().keySet())) {
             if (Utils.join(ref.getCwd(), file).exists()) {
-                if (!modified.contains(file)) {
+                if (!changed.containsKey(file)) {
                     System.out.println(file);
                 }
             } else {
-                deleted.add(file);
+                changed.put(file, " (deleted)");
             }
         }
         System.out.println("\n=== Removed Files ===");
-        for (String file : stage.getRemovals().keySet()) {
+        for (String file : new TreeSet<>(stage.getRemovals().keySet())) {
             System.out.println(file);
         }
         System.out.println("\n=== Modifications Not Staged "
                 + "For Commit ===");
-        for (String file : deleted) {
-            System.out.println(file + " (deleted)");
-        }
-        for (String file : modified) {
-            System.out.println(file + " (modified)");
+        for (Map.Entry<String, String> file : changed.entrySet()) {
+            System.out.println(file.getKey() + file.getValue());
         }
         System.out.println("\n=== Untracked Files ===");
         for (String file : untracked) {
@@ -314,17 +567,8 @@ public class Gitlet {
 
         if (head.containsFile(name)) {
             File file = Utils.join(ref.getCwd(), name);
-
-            if (!file.exists()) {
-                try {
-                    file.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            File blob = Utils.join(BLOB_FOLDER, head.getBlobs().get(name));
-            Utils.writeContents(file, Utils.readContents(blob));
+            Materializer.fromConfig().write(head.getBlobs().get(name),
+                    file);
         } else {
             throw new GitletException("File does not "
                     + "exist in that commit");
@@ -337,37 +581,13 @@ public class Gitlet {
      */
     public void checkoutCommit(String id, String name) {
         Reference ref = Reference.fromFile();
-        File commitFile = Utils.join(COMMIT_FOLDER, id);
-        Boolean noCommit = false;
-
-        if (!commitFile.exists()) {
-            noCommit = true;
-
-            for (String hash : Utils.plainFilenamesIn(COMMIT_FOLDER)) {
-                if (hash.contains(id)) {
-                    noCommit = false;
-                    id = hash;
-                }
-            }
-
-            if (noCommit) {
-                throw new GitletException("No commit with "
-                        + "that id exists.");
-            }
-        }
+        id = ObjectStore.resolveCommit(id);
 
         Commit commit = Commit.fromFile(id);
         if (commit.containsFile(name)) {
             File file = Utils.join(ref.getCwd(), name);
-            if (!file.exists()) {
-                try {
-                    file.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            File blob = Utils.join(BLOB_FOLDER, commit.getBlobs().get(name));
-            Utils.writeContents(file, Utils.readContents(blob));
+            Materializer.fromConfig().write(commit.getBlobs().get(name),
+                    file);
         } else {
             throw new GitletException("File does not "
                     + "exist in that commit.");
@@ -396,35 +616,9 @@ public class Gitlet {
         Commit commit = Commit.fromFile(branch);
         Commit head = Commit.fromFile(ref.getHead());
 
-        for (String file : Utils.plainFilenamesIn(ref.getCwd())) {
-            if (!head.containsFile(file)
-                    && commit.containsFile(file)) {
-                throw new GitletException("There is an untracked "
-                        + "file in the way; delete it, or add and"
-                        + " commit it first.");
-            }
-        }
-
-        for (Map.Entry<String, String> entry
-                : commit.getBlobs().entrySet()) {
-            File file = Utils.join(ref.getCwd(), entry.getKey());
-
-            if (!file.exists()) {
-                try {
-                    file.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            File blob = Utils.join(BLOB_FOLDER, entry.getValue());
-            Utils.writeContents(file, Utils.readContents(blob));
-        }
-
-        for (String file : head.getBlobs().keySet()) {
-            if (!commit.containsFile(file)) {
-                Utils.restrictedDelete(Utils.join(
-                        ref.getCwd(), file));
-            }
+        try (WorkingTree tree = new WorkingTree(ref.getCwd())) {
+            tree.checkUntracked(head, commit);
+            tree.checkout(head, commit);
         }
 
         ref.setCurrent(name);
@@ -481,43 +675,14 @@ public class Gitlet {
         Reference ref = Reference.fromFile();
         Stage stage = Stage.fromFile();
 
-        if (!Utils.plainFilenamesIn(COMMIT_FOLDER).contains(id)) {
-            throw new GitletException("No commit with that id exists.");
-        }
+        id = ObjectStore.resolveCommit(id);
 
         Commit commit = Commit.fromFile(id);
         Commit head = Commit.fromFile(ref.getHead());
 
-        for (String file : Utils.plainFilenamesIn(ref.getCwd())) {
-            if (!head.containsFile(file)
-                    && commit.containsFile(file)) {
-                throw new GitletException("There is an untracked "
-                        + "file in the way; delete it, or add and"
-                        + " commit it first.");
-            }
-        }
-
-        for (Map.Entry<String, String> entry
-                : commit.getBlobs().entrySet()) {
-            File file = Utils.join(ref.getCwd(), entry.getKey());
-
-            if (!file.exists()) {
-                try {
-                    file.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            File blob = Utils.join(BLOB_FOLDER, entry.getValue());
-            Utils.writeContents(file, Utils.readContents(blob));
-        }
-
-        for (String file : head.getBlobs().keySet()) {
-            if (!commit.containsFile(file)) {
-                Utils.restrictedDelete(Utils.join(
-                        ref.getCwd(), file));
-            }
+        try (WorkingTree tree = new WorkingTree(ref.getCwd())) {
+            tree.checkUntracked(head, commit);
+            tree.checkout(head, commit);
         }
 
         ref.setHead(commit.hash());
@@ -543,23 +708,24 @@ public class Gitlet {
         Commit splitPoint = getSplitPoint(head, other);
         mergeExceptions2(ref, stage, name, splitPoint, head, other);
         assert splitPoint != null;
+        Sparse sparse = Sparse.fromFile();
         for (String fileName : getFiles(head, other, splitPoint)) {
             String s = splitPoint.getHash(fileName);
             String h = head.getHash(fileName);
             String o = other.getHash(fileName);
             if (s == null && h == null && o != null) {
-                checkoutCommit(other.hash(), fileName);
+                mergeCheckout(sparse, other, fileName);
                 stage.getAdditions().put(fileName, o);
             } else if (s == null && h != null && o == null) {
-                checkoutCommit(head.hash(), fileName);
+                mergeCheckout(sparse, head, fileName);
                 stage.getAdditions().put(fileName, h);
             } else if (s != null && h != null) {
                 if (s.compareTo(h) == 0 && o == null) {
-                    stage.remove(Utils.join(ref.getCwd(), fileName), head);
+                    stage.remove(ref.getCwd(), fileName, head);
                 }
                 if (o != null) {
                     if (s.compareTo(h) == 0 && s.compareTo(o) != 0) {
-                        checkoutCommit(other.hash(), fileName);
+                        mergeCheckout(sparse, other, fileName);
                         stage.getAdditions().put(fileName, o);
                     }
                 }
@@ -575,14 +741,12 @@ public class Gitlet {
                 System.out.println("Encountered a merge conflict.");
             } else if (s != null && h != null && s.compareTo(h) != 0
                     && o == null) {
-                String content = Utils.readContentsAsString(
-                        Utils.join(BLOB_FOLDER, h));
+                String content = ObjectStore.readBlobAsString(h);
                 createConflictFileWithEmptyFile(fileName, content, "");
                 System.out.println("Encountered a merge conflict.");
             } else if (s != null && o != null && s.compareTo(o) != 0
                     && h == null) {
-                String content = Utils.readContentsAsString(
-                        Utils.join(BLOB_FOLDER, o));
+                String content = ObjectStore.readBlobAsString(o);
                 createConflictFileWithEmptyFile(fileName, "", content);
                 System.out.println("Encountered a merge conflict.");
             }
@@ -594,6 +758,19 @@ public class Gitlet {
     }
 
 
+    /** Write the version of a file in COMMIT for a merge, unless the
+     * file is outside the sparse checkout.
+     * @param sparse sparse checkout
+     * @param commit commit
+     * @param fileName path of the file
+     */
+    private void mergeCheckout(Sparse sparse, Commit commit,
+                               String fileName) {
+        if (sparse.includes(fileName)) {
+            checkoutCommit(commit.hash(), fileName);
+        }
+    }
+
     private void createConflictFile(String fileName,
                                     String hash1,
                                     String hash2) {
@@ -601,18 +778,18 @@ public class Gitlet {
         Stage stage = Stage.fromFile();
 
         File from = Utils.join(ref.getCwd(), fileName);
-        String content1 = Utils.readContentsAsString(Utils.join(
-                BLOB_FOLDER, hash1));
-        String content2 = Utils.readContentsAsString(Utils.join(
-                BLOB_FOLDER, hash2));
+        String content1 = ObjectStore.readBlobAsString(hash1);
+        String content2 = ObjectStore.readBlobAsString(hash2);
 
         String content = "<<<<<<< HEAD\n".concat(content1)
                 .concat("=======\n")
                 .concat(content2)
                 .concat(">>>>>>>\n");
+        from.getParentFile().mkdirs();
+        from.delete();
         Utils.writeContents(from, content);
 
-        stage.add(fileName, from, Utils.sha1(content));
+        stage.add(fileName, ObjectStore.storeBlob(from));
         stage.saveFile();
     }
 
@@ -654,13 +831,8 @@ public class Gitlet {
         }
 
 
-        for (String file : Utils.plainFilenamesIn(ref.getCwd())) {
-            if (!head.containsFile(file)
-                    && other.containsFile(file)) {
-                throw new GitletException("There is an untracked "
-                        + "file in the way; delete it, or add and"
-                        + " commit it first.");
-            }
+        try (WorkingTree tree = new WorkingTree(ref.getCwd())) {
+            tree.checkUntracked(head, other);
         }
     }
 
@@ -676,9 +848,11 @@ public class Gitlet {
                 .concat("=======\n")
                 .concat(content2)
                 .concat(">>>>>>>\n");
+        from.getParentFile().mkdirs();
+        from.delete();
         Utils.writeContents(from, content);
 
-        stage.add(fileName, from, Utils.sha1(content));
+        stage.add(fileName, ObjectStore.storeBlob(from));
         stage.saveFile();
     }
 
@@ -698,27 +872,43 @@ public class Gitlet {
                 other.hash(), ref.getCurrent(), name);
         String hash = hash(mergeCommit);
 
-        HashMap<String, String> blobs = head.getBlobs();
-        HashMap<String, String> map = stage.getAdditions();
-        for (String key : map.keySet()) {
-            if (blobs.containsKey(key)) {
-                blobs.replace(key, map.get(key));
-            } else {
-                blobs.put(key, map.get(key));
-            }
-        }
-        map = stage.getRemovals();
-        for (String key : map.keySet()) {
-            blobs.remove(key);
-        }
-
-        mergeCommit.setBlobs(blobs);
+        mergeCommit.setTree(Tree.update(head.getTree(), changes(stage)));
 
         stage.clear();
         mergeCommit.saveFile(hash);
         ref.setHead(hash);
     }
 
+    /** Helper method that lists what the stage changes.
+     * @param stage stage object
+     * @return new blob of each staged path, or null if it is removed
+     */
+    private HashMap<String, String> changes(Stage stage) {
+        HashMap<String, String> changes = new HashMap<>(
+                stage.getAdditions());
+        for (String name : stage.getRemovals().keySet()) {
+            changes.put(name, null);
+        }
+        return changes;
+    }
+
+    /** Delete a file from the working directory, and the directories
+     * this leaves empty.
+     * @param cwd working directory
+     * @param name path of the file
+     */
+    static void deleteFile(File cwd, String name) {
+        File file = Utils.join(cwd, name);
+        if (!file.isFile()) {
+            return;
+        }
+        file.delete();
+        for (File dir = file.getParentFile(); !dir.equals(cwd)
+                && dir.delete(); dir = dir.getParentFile()) {
+            continue;
+        }
+    }
+
     /** Helper method that get all the files present.
      * @param head head commit
      * @param other other commit we want to merge with
@@ -735,65 +925,101 @@ public class Gitlet {
         return allFiles;
     }
 
-    /** Helper method that finds the closest common ancestors of 2 branches.
+    /** Helper method that finds the closest common ancestor of 2 branches.
+     * After a criss-cross merge there are several; the one with the
+     * highest generation, then the latest, is used.
      * @param branch1 first branch's hash
      * @param branch2 second branch's hash
      * @return split point commit object
      */
     private Commit getSplitPoint(Commit branch1, Commit branch2) {
-        ArrayList<String> h1 = getAllHashes(branch1);
-
-        ArrayList<String> h2 = getAllHashes(branch2);
-
-        for (String hash : h1) {
-            if (h2.contains(hash)) {
-                return Commit.fromFile(hash);
-            }
+        CommitGraph graph = CommitGraph.get();
+        int[] bases = graph.mergeBases(graph.index(branch1.hash()),
+                graph.index(branch2.hash()));
+        if (bases.length == 0) {
+            return null;
         }
-
-        return null;
+        return Commit.fromFile(graph.hash(bases[0]));
     }
 
+    /** Helper hashing function for commit.
+     * @param commit commit object
+     * @return hashcode of given commit object
+     */
+    private String hash(Commit commit) {
+        return Utils.sha1(commit.encode());
+    }
 
-    /** Helper method that gest all the hashes using Breath-first Search.
-     * @param root root commit
-     * @return all hashes
+    /** Helper hashing function for file.
+     * @param file file location
+     * @return hashcode of the content of the given file
      */
-    private ArrayList<String> getAllHashes(Commit root) {
-        Queue<Commit> q = new LinkedList<Commit>();
-        ArrayList<String> hashes = new ArrayList<>();
-        q.add(root);
+    public static String hash(File file) {
+        return ObjectStore.hash(file);
+    }
 
-        while (!q.isEmpty()) {
-            Commit next = q.poll();
-            hashes.add(next.hash());
 
-            if (next.getParent() != null) {
-                q.add(Commit.fromFile(next.getParent()));
-            }
+    /** Consolidates loose commits and blobs into a pack. */
+    public void pack() {
+        ObjectStore.repack();
+    }
 
-            if (next.isMerge()) {
-                q.add(Commit.fromFile(next.getSecondParent()));
-            }
+    /** Keep only the paths matching PATTERNS in the working directory,
+     * or every path if there are none.
+     * @param patterns globs
+     */
+    public void sparseCheckout(List<String> patterns) {
+        Reference ref = Reference.fromFile();
+        Commit head = Commit.fromFile(ref.getHead());
+        Sparse slice = new Sparse(patterns);
+        try (WorkingTree tree = new WorkingTree(ref.getCwd())) {
+            tree.sparsen(head, slice);
         }
+        slice.saveFile();
+    }
 
-        return hashes;
+    /** Prints out the patterns of the sparse checkout. */
+    public void sparseList() {
+        for (String pattern : Sparse.fromFile().patterns()) {
+            System.out.println(pattern);
+        }
     }
 
-    /** Helper hashing function for commit.
-     * @param commit commit object
-     * @return hashcode of given commit object
+    /** Watches the working directory until stopped, journalling the
+     * paths that change for status and add. */
+    public void monitor() {
+        Monitor.run(Reference.fromFile().getCwd());
+    }
+
+    /** Stops the running monitor. */
+    public void stopMonitor() {
+        Monitor.stop();
+    }
+
+    /** Deletes the commits and blobs that no branch, HEAD or the stage
+     * can reach. */
+    public void gc() {
+        new Collector().run();
+    }
+
+    /** Prints a repository setting, if it is set.
+     * @param key name of the setting
      */
-    private String hash(Commit commit) {
-        return Utils.sha1(Utils.serialize(commit));
+    public void config(String key) {
+        String value = Config.fromFile().get(key, null);
+        if (value != null) {
+            System.out.println(value);
+        }
     }
 
-    /** Helper hashing function for file.
-     * @param file file location
-     * @return hashcode of the content of the given file
+    /** Changes a repository setting.
+     * @param key name of the setting
+     * @param value new value
      */
-    public static String hash(File file) {
-        return Utils.sha1(Utils.readContents(file));
+    public void config(String key, String value) {
+        Config config = Config.fromFile();
+        config.set(key, value);
+        config.saveFile();
     }
 
 
@@ -0,0 +1,131 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The untracked files and directories to leave out of listings of the
+ * working directory, read from .gitletignore at its root. Each line that
+ * is not blank and does not start with '#' is a glob, as understood by
+ * FileSystem.getPathMatcher, in which '*' does not match '/' and '**'
+ * does. A glob with no '/' matches a name at any depth; any other glob
+ * matches a whole path from the root, with or without a leading '/'. A
+ * trailing '/' makes a glob match only directories. Everything under an
+ * ignored directory is ignored, and its contents are never listed.
+ * @author Tim Li
+ */
+class Ignore {
+
+    /** Name of the file of globs. */
+    static final String FILE = ".gitletignore";
+
+    /** Globs matched against the last name of a path. */
+    private List<Rule> _names;
+    /** Globs matched against the whole path. */
+    private List<Rule> _paths;
+
+    /** The rules of .gitletignore in CWD, or none if there is no such file.
+     * @param cwd working directory
+     * @return rules
+     */
+    static Ignore fromFile(File cwd) {
+        Ignore ignore = new Ignore();
+        ignore._names = new ArrayList<>();
+        ignore._paths = new ArrayList<>();
+        File file = Utils.join(cwd, FILE);
+        if (!file.isFile()) {
+            return ignore;
+        }
+        for (String line : Utils.readContentsAsString(file).split("\n")) {
+            String glob = line.strip();
+            if (glob.isEmpty() || glob.startsWith("#")) {
+                continue;
+            }
+            boolean dirOnly = glob.endsWith("/");
+            if (dirOnly) {
+                glob = glob.substring(0, glob.length() - 1);
+            }
+            if (glob.isEmpty()) {
+                continue;
+            }
+            if (glob.contains("/")) {
+                ignore._paths.add(new Rule(glob.startsWith("/")
+                        ? glob.substring(1) : glob, dirOnly));
+            } else {
+                ignore._names.add(new Rule(glob, dirOnly));
+            }
+        }
+        return ignore;
+    }
+
+    /** Are there no rules.
+     * @return yes or no
+     */
+    boolean isEmpty() {
+        return _names.isEmpty() && _paths.isEmpty();
+    }
+
+    /** Is PATH ignored, or under an ignored directory.
+     * @param path path relative to the working directory, with '/'
+     * @param dir whether it names a directory
+     * @return yes or no
+     */
+    boolean ignored(String path, boolean dir) {
+        if (isEmpty()) {
+            return false;
+        }
+        for (int slash = path.indexOf('/'); slash > 0;
+             slash = path.indexOf('/', slash + 1)) {
+            if (matches(path.substring(0, slash), true)) {
+                return true;
+            }
+        }
+        return matches(path, dir);
+    }
+
+    /** Does a rule match PATH itself, whatever its parents.
+     * @param path path relative to the working directory, with '/'
+     * @param dir whether it names a directory
+     * @return yes or no
+     */
+    boolean matches(String path, boolean dir) {
+        if (isEmpty()) {
+            return false;
+        }
+        Path whole = Paths.get(path);
+        Path name = whole.getFileName();
+        for (Rule rule : _names) {
+            if ((dir || !rule._dirOnly) && rule._glob.matches(name)) {
+                return true;
+            }
+        }
+        for (Rule rule : _paths) {
+            if ((dir || !rule._dirOnly) && rule._glob.matches(whole)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** One line of .gitletignore. */
+    private static class Rule {
+
+        /** Compiled glob. */
+        private final PathMatcher _glob;
+        /** Whether it only matches directories. */
+        private final boolean _dirOnly;
+
+        /** A rule.
+         * @param glob glob, without a leading or trailing '/'
+         * @param dirOnly whether it only matches directories
+         */
+        Rule(String glob, boolean dirOnly) {
+            _glob = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            _dirOnly = dirOnly;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package gitlet;
 
+import java.util.Arrays;
+import java.util.List;
+
 /** Driver class for Gitlet, the tiny stupid version-control system.
  *  @author Tim Li
  */
@@ -30,6 +33,7 @@ public class Main {
             if (args[0].compareTo("init") == 0) {
                 git.init();
             } else if (git.initiaized()) {
+                git.upgrade();
                 execute(args, git);
             } else {
                 throw new GitletException("Not in an initialized "
@@ -38,12 +42,16 @@ public class Main {
         } catch (GitletException g) {
             System.out.println(g.getMessage());
         }
+        Stats.print();
     }
 
     private static void execute(String[] args, Gitlet git) {
         switch (args[0]) {
         case "add":
-            git.add(args[1]);
+            if (args.length < 2) {
+                throw new GitletException("Incorrect operands.");
+            }
+            git.add(Arrays.asList(args).subList(1, args.length));
             break;
         case "commit":
             git.commit(args[1]);
@@ -55,10 +63,14 @@ public class Main {
             git.log();
             break;
         case "global-log":
-            git.globalLog();
+            git.globalLog(Arrays.copyOfRange(args, 1, args.length));
             break;
         case "find":
-            git.find(args[1]);
+            if (args.length > 2 && args[1].compareTo("--grep") == 0) {
+                git.grep(Arrays.asList(args).subList(2, args.length));
+            } else {
+                git.find(args[1]);
+            }
             break;
         case "status":
             git.status();
@@ -87,6 +99,42 @@ public class Main {
         case "merge":
             git.merge(args[1]);
             break;
+        case "pack":
+            git.pack();
+            break;
+        case "gc":
+            git.gc();
+            break;
+        case "monitor":
+            if (args.length == 1) {
+                git.monitor();
+            } else if (args.length == 2 && args[1].equals("stop")) {
+                git.stopMonitor();
+            } else {
+                throw new GitletException("Incorrect operands.");
+            }
+            break;
+        case "sparse-checkout":
+            if (args.length > 2 && args[1].equals("set")) {
+                git.sparseCheckout(Arrays.asList(args)
+                        .subList(2, args.length));
+            } else if (args.length == 2 && args[1].equals("disable")) {
+                git.sparseCheckout(List.of());
+            } else if (args.length == 2 && args[1].equals("list")) {
+                git.sparseList();
+            } else {
+                throw new GitletException("Incorrect operands.");
+            }
+            break;
+        case "config":
+            if (args.length == 2) {
+                git.config(args[1]);
+            } else if (args.length == 3) {
+                git.config(args[1], args[2]);
+            } else {
+                throw new GitletException("Incorrect operands.");
+            }
+            break;
         default:
             throw new GitletException("No command with that "
                     + "name exist.");
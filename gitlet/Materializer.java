@@ -0,0 +1,237 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/** Writes blobs to working files by the strategy that checkout.materialize
+ * names. Every strategy writes a temporary file beside the working file
+ * and renames it into place, so a working file never holds part of a
+ * blob. They are:
+ *      copy      streams the blob through a buffer; the default.
+ *      transfer  has the kernel copy the object file with
+ *                FileChannel.transferTo, without the bytes entering Java.
+ *      reflink   clones the linked copy of the blob with
+ *                cp --reflink=always, which shares its blocks until the
+ *                working file is written to, on filesystems that support
+ *                it, such as Btrfs and XFS.
+ *      hardlink  links the working file to the linked copy of the blob.
+ *                Only for large assets that are never edited in place:
+ *                every working file linked to the copy is the copy.
+ * The linked copy of a blob is a read-only file under .gitlet/link with
+ * exactly the bytes of the blob, made the first time the blob is linked
+ * or cloned; object files cannot serve, since they start with a header.
+ * Only blobs of at least checkout.linkMinSize bytes get one, and smaller
+ * blobs are copied. Transfer needs the blob as a loose object stored
+ * uncompressed, with core.compression 0, and skips its header. Other
+ * blobs, and any the strategy fails for, are copied. A reflink that fails
+ * once is not tried again in the same command.
+ * @author Tim Li
+ */
+class Materializer {
+
+    /** Config key of the strategy. */
+    static final String STRATEGY = "checkout.materialize";
+    /** Streaming copy. */
+    static final String COPY = "copy";
+    /** Kernel copy with FileChannel.transferTo. */
+    static final String TRANSFER = "transfer";
+    /** Copy-on-write clone. */
+    static final String REFLINK = "reflink";
+    /** Read-only hard link. */
+    static final String HARDLINK = "hardlink";
+    /** Config key of the size below which reflink and hardlink copy
+     * blobs. */
+    static final String LINK_MIN_SIZE = "checkout.linkMinSize";
+    /** Default of checkout.linkMinSize. */
+    static final int DEFAULT_LINK_MIN_SIZE = 1 << 20;
+    /** Folder of the copies of blobs that working files are linked to. */
+    static final File LINK_FOLDER = new File(".gitlet/link");
+    /** Prefix of the names of the counters of files written by each
+     * strategy. */
+    static final String WRITTEN_BY = "checkout files written by ";
+    /** Name of the counter of reflinks the filesystem refused. */
+    static final String REFLINK_FAILED = "checkout reflinks failed";
+
+    /** The strategy. */
+    private final String _strategy;
+    /** Smallest blob that reflink and hardlink link. */
+    private final long _linkMinSize;
+    /** Whether a reflink has failed. */
+    private volatile boolean _noReflink;
+
+    /** A materializer using STRATEGY.
+     * @param strategy one of COPY, TRANSFER, REFLINK and HARDLINK
+     * @param linkMinSize smallest blob that REFLINK and HARDLINK link
+     */
+    Materializer(String strategy, long linkMinSize) {
+        _strategy = strategy;
+        _linkMinSize = linkMinSize;
+    }
+
+    /** The materializer configured for this repository.
+     * @return materializer
+     */
+    static Materializer fromConfig() {
+        Config config = Config.fromFile();
+        String strategy = config.get(STRATEGY, COPY);
+        switch (strategy) {
+        case COPY:
+        case TRANSFER:
+        case REFLINK:
+        case HARDLINK:
+            return new Materializer(strategy, config.getInt(
+                    LINK_MIN_SIZE, DEFAULT_LINK_MIN_SIZE));
+        default:
+            throw new GitletException("Bad value for " + STRATEGY + ": "
+                    + strategy);
+        }
+    }
+
+    /** Location of the linked copy of a blob.
+     * @param hash blob hash
+     * @return file location
+     */
+    static File linkFile(String hash) {
+        return ObjectStore.objectFile(LINK_FOLDER, hash);
+    }
+
+    /** Write a blob to a working file, replacing whatever is there. Safe
+     * to call from several threads at once.
+     * @param hash blob hash
+     * @param file working file
+     */
+    void write(String hash, File file) {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getParentFile(),
+                ".gitlet-" + UUID.randomUUID() + ".tmp");
+        try {
+            Stats.add(WRITTEN_BY + materialize(hash, temp), 1);
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /** Write a blob to TEMP, which does not exist yet.
+     * @param hash blob hash
+     * @param temp file to write
+     * @return the strategy that wrote it
+     */
+    private String materialize(String hash, File temp) {
+        try {
+            switch (_strategy) {
+            case TRANSFER:
+                long offset = ObjectStore.rawBlobOffset(hash);
+                if (offset >= 0) {
+                    transfer(ObjectStore.blobFile(hash), offset, temp);
+                    return TRANSFER;
+                }
+                break;
+            case REFLINK:
+                File source = _noReflink ? null : linked(hash);
+                if (source != null) {
+                    if (reflink(source, temp)) {
+                        temp.setWritable(true);
+                        return REFLINK;
+                    }
+                    _noReflink = true;
+                    Stats.add(REFLINK_FAILED, 1);
+                    temp.delete();
+                }
+                break;
+            case HARDLINK:
+                File linked = linked(hash);
+                if (linked != null) {
+                    Files.createLink(temp.toPath(), linked.toPath());
+                    return HARDLINK;
+                }
+                break;
+            default:
+                break;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            temp.delete();
+        }
+        ObjectStore.copyBlob(hash, temp);
+        return COPY;
+    }
+
+    /** The read-only copy of a blob that working files are linked to or
+     * cloned from, made now if the blob is large enough and there is none
+     * yet.
+     * @param hash blob hash
+     * @return copy, or null if the blob is smaller than
+     *         checkout.linkMinSize
+     * @throws IOException if the copy cannot be made
+     */
+    private File linked(String hash) throws IOException {
+        File linked = linkFile(hash);
+        if (linked.isFile()) {
+            return linked.length() >= _linkMinSize ? linked : null;
+        }
+        if (ObjectStore.blobSize(hash) < _linkMinSize) {
+            return null;
+        }
+        linked.getParentFile().mkdirs();
+        File temp = File.createTempFile("tmp-", null,
+                linked.getParentFile());
+        try {
+            ObjectStore.copyBlob(hash, temp);
+            temp.setWritable(false, false);
+            Files.move(temp.toPath(), linked.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+        return linked;
+    }
+
+    /** Copy the contents of an object file to TEMP within the kernel.
+     * @param object uncompressed object file
+     * @param offset where the contents start in OBJECT
+     * @param temp file to write
+     * @throws IOException if the copy fails
+     */
+    private static void transfer(File object, long offset, File temp)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(object.toPath(),
+                StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp.toPath(),
+                     StandardOpenOption.CREATE_NEW,
+                     StandardOpenOption.WRITE)) {
+            long size = in.size();
+            for (long done = offset; done < size;) {
+                done += in.transferTo(done, size - done, out);
+            }
+        }
+    }
+
+    /** Clone a file to TEMP.
+     * @param source linked copy of a blob
+     * @param temp file to write
+     * @return whether the filesystem made the clone
+     * @throws IOException if cp cannot be run
+     */
+    private static boolean reflink(File source, File temp)
+            throws IOException {
+        Process process = new ProcessBuilder("cp", "--reflink=always",
+                source.getPath(), temp.getPath())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            return process.waitFor() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package gitlet;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Date;
 
 public class MergeCommit extends Commit {
 
+    /** Pinned so that files written by earlier versions stay readable. */
+    private static final long serialVersionUID = 6881654905035906729L;
+
     /** Points to the parent from the current branch. */
     private String _secondParent;
 
@@ -25,6 +30,23 @@ public class MergeCommit extends Commit {
         _logMessage = "Merged " + _secondBranch + " into " + _firstBranch + ".";
     }
 
+    /** A merge commit read back by Commit.decode, without blobs yet. */
+    MergeCommit(String message, String firstParent, String secondParent,
+                String firstBranch, String secondBranch, Date timestamp) {
+        super(message, firstParent, timestamp);
+        _secondParent = secondParent;
+        _firstBranch = firstBranch;
+        _secondBranch = secondBranch;
+        _logMessage = "Merged " + _secondBranch + " into " + _firstBranch + ".";
+    }
+
+    @Override
+    void encodeMerge(DataOutputStream out) throws IOException {
+        Codec.writeHash(out, _secondParent);
+        Codec.writeString(out, _firstBranch);
+        Codec.writeString(out, _secondBranch);
+    }
+
     /** Get the log message.
      * @return log message
      */
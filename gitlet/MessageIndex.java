@@ -0,0 +1,263 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** Which commits have a message, or contain some text in their message,
+ * without reading the commits. Each key has its own file of the commits
+ * under it, stored like an object under the hash of the key, so a lookup
+ * reads one file per key whatever the length of the history. The keys of
+ * a commit are its exact message and every run of GRAM characters of its
+ * message in lowercase. Files are only appended to.
+ *
+ * Saving a commit does not write to the file of each of its keys, which
+ * would be dozens of small writes. Its postings are appended as one
+ * record to a pending file, which lookups also read; once that holds
+ * FOLD_SIZE bytes, its postings are grouped by key and each key's file is
+ * appended to once. A fold cut short is simply done again: the files may
+ * then list a commit twice, which lookups ignore.
+ *
+ * A lookup through grams can find commits that merely contain every gram
+ * of the text, and a commit deleted by gc stays in the files, so every
+ * commit found is checked against its header before it is returned.
+ * @author Tim Li
+ */
+class MessageIndex {
+
+    /** Folder of the files of commits by key. */
+    static final File FOLDER = new File(".gitlet/index");
+    /** Length of the runs of characters indexed for searching. */
+    static final int GRAM = 3;
+    /** Postings not yet in the files of their keys. Each record is a
+     * commit hash, the number of its keys, and the keys. */
+    static final File PENDING = new File(FOLDER, "pending");
+    /** Size of the pending file at which it is folded into the files of
+     * the keys. */
+    static final int FOLD_SIZE = 64 << 10;
+    /** Length of a hash in bytes. */
+    private static final int HASH_BYTES = Utils.UID_LENGTH / 2;
+
+    /** Record the message of a commit, with one append to the pending
+     * file, after dropping a record a crash left torn there.
+     * @param hash commit hash
+     * @param message its message
+     */
+    static void add(String hash, String message) {
+        Set<String> grams = grams(message.toLowerCase(Locale.ROOT));
+        ByteBuffer record = ByteBuffer.allocate(HASH_BYTES + Integer.BYTES
+                + (grams.size() + 1) * HASH_BYTES);
+        record.put(Pack.fromHex(hash)).putInt(grams.size() + 1)
+                .put(Pack.fromHex(exactKey(message)));
+        for (String gram : grams) {
+            record.put(Pack.fromHex(gramKey(gram)));
+        }
+        int whole = forEachPending((commit, key) -> { });
+        if (whole < PENDING.length()) {
+            try (RandomAccessFile file = new RandomAccessFile(PENDING,
+                    "rw")) {
+                file.setLength(whole);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        append(PENDING, record.array());
+        if (PENDING.length() >= FOLD_SIZE) {
+            fold();
+        }
+    }
+
+    /** Move the pending postings into the files of their keys, appending
+     * to each file once, then empty the pending file. */
+    static void fold() {
+        Map<String, ByteArrayOutputStream> postings = new LinkedHashMap<>();
+        forEachPending((commit, key) -> postings.computeIfAbsent(
+                Pack.toHex(key), k -> new ByteArrayOutputStream())
+                .writeBytes(commit));
+        for (Map.Entry<String, ByteArrayOutputStream> entry
+                : postings.entrySet()) {
+            append(ObjectStore.objectFile(FOLDER, entry.getKey()),
+                    entry.getValue().toByteArray());
+        }
+        PENDING.delete();
+    }
+
+    /** The commits with exactly this message.
+     * @param message message
+     * @return hashes, in lexicographic order
+     */
+    static List<String> find(String message) {
+        List<String> found = new ArrayList<>();
+        for (String hash : commits(exactKey(message))) {
+            if (ObjectStore.hasCommit(hash)
+                    && Commit.headerFromFile(hash).getMessage()
+                    .equals(message)) {
+                found.add(hash);
+            }
+        }
+        return found;
+    }
+
+    /** The commits whose messages contain every one of WORDS, ignoring
+     * case. Words shorter than GRAM have no file of their own, so if every
+     * word is that short all commits are read.
+     * @param words text to search for
+     * @return hashes, in lexicographic order
+     */
+    static List<String> grep(Collection<String> words) {
+        List<String> lower = new ArrayList<>();
+        Set<String> candidates = null;
+        for (String word : words) {
+            lower.add(word.toLowerCase(Locale.ROOT));
+            for (String gram : grams(lower.get(lower.size() - 1))) {
+                Set<String> commits = commits(gramKey(gram));
+                if (candidates == null) {
+                    candidates = commits;
+                } else {
+                    candidates.retainAll(commits);
+                }
+            }
+        }
+        if (candidates == null) {
+            candidates = new TreeSet<>(ObjectStore.commitIds());
+        }
+        List<String> found = new ArrayList<>();
+        for (String hash : candidates) {
+            if (!ObjectStore.hasCommit(hash)) {
+                continue;
+            }
+            String message = Commit.headerFromFile(hash).getMessage()
+                    .toLowerCase(Locale.ROOT);
+            if (lower.stream().allMatch(message::contains)) {
+                found.add(hash);
+            }
+        }
+        return found;
+    }
+
+    /** Every run of GRAM characters in TEXT, once each.
+     * @param text text
+     * @return grams
+     */
+    private static Set<String> grams(String text) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i += 1) {
+            grams.add(text.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+
+    /** Key of an exact message.
+     * @param message message
+     * @return key
+     */
+    private static String exactKey(String message) {
+        return Utils.sha1("message\0" + message);
+    }
+
+    /** Key of a run of characters.
+     * @param gram lowercase characters
+     * @return key
+     */
+    private static String gramKey(String gram) {
+        return Utils.sha1("gram\0" + gram);
+    }
+
+    /** Append BYTES to a file in one write.
+     * @param file file of a key, or the pending file
+     * @param bytes what to append
+     */
+    private static void append(File file, byte[] bytes) {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** The whole contents of a file.
+     * @param file file
+     * @return contents, empty if there is no such file
+     */
+    private static byte[] read(File file) {
+        if (!file.isFile()) {
+            return new byte[0];
+        }
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Receives the postings of the pending file. */
+    private interface Posting {
+        /** A commit is under a key.
+         * @param commit raw commit hash
+         * @param key raw key
+         */
+        void accept(byte[] commit, byte[] key);
+    }
+
+    /** Pass every posting in the pending file to ACTION, leaving out a
+     * last record torn by a crash.
+     * @param action receives each commit and key
+     * @return length of the whole records
+     */
+    private static int forEachPending(Posting action) {
+        ByteBuffer pending = ByteBuffer.wrap(read(PENDING));
+        int whole = 0;
+        while (pending.remaining() >= HASH_BYTES + Integer.BYTES) {
+            byte[] commit = new byte[HASH_BYTES];
+            pending.get(commit);
+            int count = pending.getInt();
+            if (count < 0 || pending.remaining() < count * HASH_BYTES) {
+                break;
+            }
+            for (int i = 0; i < count; i += 1) {
+                byte[] key = new byte[HASH_BYTES];
+                pending.get(key);
+                action.accept(commit, key);
+            }
+            whole = pending.position();
+        }
+        return whole;
+    }
+
+    /** The commits under a key, in its file or still pending.
+     * @param key key
+     * @return hashes, in lexicographic order
+     */
+    private static TreeSet<String> commits(String key) {
+        TreeSet<String> commits = new TreeSet<>();
+        byte[] bytes = read(ObjectStore.objectFile(FOLDER, key));
+        byte[] hash = new byte[HASH_BYTES];
+        for (int at = 0; at + HASH_BYTES <= bytes.length; at += HASH_BYTES) {
+            System.arraycopy(bytes, at, hash, 0, HASH_BYTES);
+            commits.add(Pack.toHex(hash));
+        }
+        byte[] raw = Pack.fromHex(key);
+        forEachPending((commit, pendingKey) -> {
+            if (Arrays.equals(pendingKey, raw)) {
+                commits.add(Pack.toHex(commit));
+            }
+        });
+        return commits;
+    }
+}
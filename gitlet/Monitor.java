@@ -0,0 +1,383 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/** A background process that watches the working directory and journals
+ * the paths that change, so that commands can look at those paths alone
+ * instead of the whole tree. It runs until stopped, holding a lock on
+ * LOCK so that commands can tell it is running.
+ *
+ * The journal is a line naming this run of the monitor, then a line per
+ * event: '+' and a changed path, '!' if events were lost, or '@' and the
+ * name of a cookie. A command creates a cookie file in COOKIES and waits
+ * for it to appear in the journal, so that every change made before the
+ * command started has been journalled by then. It keeps in STATE the run
+ * and the position in the journal it has read up to, with the working
+ * files as of that position; the next command starts from them and only
+ * examines the paths journalled since. If the monitor is not running, has
+ * restarted, has lost events or does not answer in time, commands list
+ * the whole tree as they would without it.
+ * @author Tim Li
+ */
+class Monitor {
+
+    /** Folder of the monitor's files. */
+    static final File FOLDER = new File(".gitlet/monitor");
+    /** File locked while the monitor runs. */
+    static final File LOCK = new File(FOLDER, "lock");
+    /** Journal of changed paths. */
+    static final File JOURNAL = new File(FOLDER, "journal");
+    /** Folder of cookies. */
+    static final File COOKIES = new File(FOLDER, "cookies");
+    /** Working files as of a position in the journal. */
+    static final File STATE = new File(FOLDER, "state");
+    /** Header of the state file. */
+    static final byte[] MAGIC = {'G', 'M', 'S', '1'};
+    /** Name of the cookie that stops the monitor. */
+    static final String STOP = "stop";
+    /** Size past which the journal is started again, as a new run. */
+    static final long MAX_JOURNAL = 1 << 20;
+    /** How long a command waits for its cookie. */
+    static final long SYNC_MILLIS = 500;
+
+    /** Root of the working directory. */
+    private Path _root;
+    /** Folder of cookies, absolute. */
+    private Path _cookies;
+    /** Source of events. */
+    private WatchService _watcher;
+    /** Directory watched by each key. */
+    private Map<WatchKey, Path> _dirs;
+    /** Appends to the journal. */
+    private OutputStream _journal;
+    /** Bytes in the journal. */
+    private long _size;
+
+    /** A monitor of CWD.
+     * @param cwd working directory
+     * @throws IOException if it cannot be watched
+     */
+    private Monitor(File cwd) throws IOException {
+        _root = cwd.toPath().toAbsolutePath();
+        _cookies = COOKIES.toPath().toAbsolutePath();
+        _watcher = _root.getFileSystem().newWatchService();
+        _dirs = new HashMap<>();
+    }
+
+    /** Watch CWD until stopped.
+     * @param cwd working directory
+     */
+    static void run(File cwd) {
+        COOKIES.mkdirs();
+        try (FileChannel channel = FileChannel.open(LOCK.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            if (lock == null) {
+                throw new GitletException("A monitor is already running.");
+            }
+            new Monitor(cwd).watch();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Ask the running monitor to stop. */
+    static void stop() {
+        if (!running()) {
+            throw new GitletException("No monitor is running.");
+        }
+        try {
+            Files.createFile(new File(COOKIES, STOP).toPath());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Is a monitor running in this repository.
+     * @return yes or no
+     */
+    static boolean running() {
+        if (!LOCK.isFile()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(LOCK.toPath(),
+                StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            return lock == null;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Journal events until the stop cookie appears or the working
+     * directory goes away.
+     * @throws IOException if the journal cannot be written
+     */
+    private void watch() throws IOException {
+        startJournal();
+        register(_root);
+        _dirs.put(_cookies.register(_watcher, ENTRY_CREATE), _cookies);
+        while (true) {
+            WatchKey key;
+            try {
+                key = _watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Path dir = _dirs.get(key);
+            StringBuilder lines = new StringBuilder();
+            boolean stop = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    lines.append("!\n");
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                if (dir.equals(_cookies)) {
+                    String name = path.getFileName().toString();
+                    stop |= name.equals(STOP);
+                    lines.append('@').append(name).append('\n');
+                    Files.deleteIfExists(path);
+                } else if (!path.equals(_root.resolve(
+                        Gitlet.GITLET_FOLDER.getName()))) {
+                    lines.append('+').append(relative(path)).append('\n');
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(
+                            path, LinkOption.NOFOLLOW_LINKS)) {
+                        register(path);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                _dirs.remove(key);
+                if (dir.equals(_root)) {
+                    stop = true;
+                }
+            }
+            append(lines.toString());
+            if (stop) {
+                _journal.close();
+                return;
+            }
+            if (_size > MAX_JOURNAL) {
+                startJournal();
+            }
+        }
+    }
+
+    /** Start the journal afresh as a new run. */
+    private void startJournal() throws IOException {
+        if (_journal != null) {
+            _journal.close();
+        }
+        _journal = new FileOutputStream(JOURNAL);
+        _size = 0;
+        append(UUID.randomUUID() + "\n");
+    }
+
+    /** Add lines to the journal.
+     * @param lines lines, each ending in a newline
+     * @throws IOException if they cannot be written
+     */
+    private void append(String lines) throws IOException {
+        byte[] bytes = lines.getBytes(StandardCharsets.UTF_8);
+        _journal.write(bytes);
+        _journal.flush();
+        _size += bytes.length;
+    }
+
+    /** Watch a directory and every directory under it, except .gitlet.
+     * @param top directory
+     * @throws IOException if one cannot be watched
+     */
+    private void register(Path top) throws IOException {
+        Path gitlet = _root.resolve(Gitlet.GITLET_FOLDER.getName());
+        Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(
+                    Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.equals(gitlet)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                _dirs.put(dir.register(_watcher, ENTRY_CREATE,
+                        ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** Path relative to the working directory, with '/' between names.
+     * @param path absolute path
+     * @return relative path
+     */
+    private String relative(Path path) {
+        return _root.relativize(path).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    /** What changed since the last command that read the journal, if the
+     * running monitor can tell.
+     * @return changes, or null if no monitor answered
+     */
+    static Changes changes() {
+        if (!running()) {
+            return null;
+        }
+        String cookie = UUID.randomUUID().toString();
+        File cookieFile = new File(COOKIES, cookie);
+        try {
+            Files.createFile(cookieFile.toPath());
+            long deadline = System.currentTimeMillis() + SYNC_MILLIS;
+            while (System.currentTimeMillis() < deadline) {
+                String journal = Files.readString(JOURNAL.toPath());
+                int at = journal.indexOf("\n@" + cookie + "\n");
+                if (at >= 0) {
+                    return new Changes(journal.substring(0,
+                            at + cookie.length() + 3));
+                }
+                Thread.sleep(2);
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cookieFile.delete();
+        }
+        return null;
+    }
+
+    /** The paths journalled between the position a command last read up
+     * to and its cookie. */
+    static class Changes {
+
+        /** Run of the monitor. */
+        private String _run;
+        /** Length of the journal up to and including the cookie. */
+        private int _end;
+        /** Working files as of the last position read, or null if they
+         * are not known. */
+        private List<String> _files;
+        /** Paths changed since, or null if they are not known. */
+        private List<String> _dirty;
+
+        /** Read the changes in JOURNAL, which ends at a cookie.
+         * @param journal journal up to and including the cookie
+         */
+        Changes(String journal) {
+            int newline = journal.indexOf('\n');
+            _run = journal.substring(0, newline);
+            _end = journal.getBytes(StandardCharsets.UTF_8).length;
+            int start = readState();
+            if (_files == null || start > _end) {
+                _files = null;
+                return;
+            }
+            byte[] bytes = journal.getBytes(StandardCharsets.UTF_8);
+            String since = new String(bytes, start, _end - start,
+                    StandardCharsets.UTF_8);
+            _dirty = new ArrayList<>();
+            for (String line : since.split("\n")) {
+                if (line.startsWith("!")) {
+                    _files = null;
+                    _dirty = null;
+                    return;
+                } else if (line.startsWith("+")) {
+                    _dirty.add(line.substring(1));
+                }
+            }
+        }
+
+        /** Load the state, if it belongs to this run.
+         * @return position in the journal it was saved at, or -1
+         */
+        private int readState() {
+            if (!STATE.isFile()) {
+                return -1;
+            }
+            try {
+                Codec.Reader in = new Codec.Reader(
+                        Utils.readContents(STATE));
+                in.readHeader(MAGIC);
+                if (!_run.equals(in.readString())) {
+                    return -1;
+                }
+                int position = in.readVarint();
+                List<String> files = new ArrayList<>();
+                for (int i = in.readVarint(); i > 0; i -= 1) {
+                    files.add(in.readString());
+                }
+                _files = files;
+                return position;
+            } catch (IllegalArgumentException e) {
+                return -1;
+            }
+        }
+
+        /** Record FILES as the working files at the cookie, so that the
+         * next command starts from there.
+         * @param files paths of the working files
+         */
+        void save(Collection<String> files) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.write(MAGIC);
+                Codec.writeString(out, _run);
+                Codec.writeVarint(out, _end);
+                Codec.writeVarint(out, files.size());
+                for (String file : files) {
+                    Codec.writeString(out, file);
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            Utils.writeContents(STATE, bytes.toByteArray());
+        }
+
+        /** Working files as of the last position read.
+         * @return paths, or null if the whole tree must be listed
+         */
+        List<String> files() {
+            return _files;
+        }
+
+        /** Paths journalled since the last position read, which may name
+         * files or directories, present or gone.
+         * @return paths, or null if the whole tree must be listed
+         */
+        List<String> dirty() {
+            return _dirty;
+        }
+    }
+}
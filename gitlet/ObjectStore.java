@@ -0,0 +1,894 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** Locates commits and blobs on disk. Like git, objects are fanned out
+ * into subdirectories named by the first two characters of their hash,
+ * and the file inside is named by the rest of the hash, so that no single
+ * directory grows with the size of the history.
+ *
+ * Object files are DEFLATE-compressed behind a short magic header, or,
+ * at core.compression 0, stored as they are behind a header of their own,
+ * so that no contents can be mistaken for a header. Files without any
+ * header are read as they are, which keeps repositories written before
+ * compression was introduced readable.
+ *
+ * Objects may also live in packs, which are searched before the loose
+ * files.
+ * @author Tim Li
+ */
+public class ObjectStore {
+
+    /** Number of hash characters that name a shard directory. */
+    static final int SHARD_LENGTH = 2;
+    /** Config key of the compression level, 0 to 9, or -1 for the zlib
+     * default. Level 0 writes objects uncompressed. */
+    static final String COMPRESSION = "core.compression";
+    /** Header of a compressed object file. */
+    private static final byte[] COMPRESSED = {'G', 'L', 'Z', '1'};
+    /** Header of an object file stored uncompressed. */
+    private static final byte[] STORED = {'G', 'L', 'S', '1'};
+    /** Size of the buffers used to stream objects. */
+    static final int BUFFER_SIZE = 1 << 16;
+    /** Config key of the size above which blobs are left out of packs. */
+    static final String BIG_FILE_THRESHOLD = "pack.bigFileThreshold";
+    /** Default of pack.bigFileThreshold. */
+    static final int DEFAULT_BIG_FILE_THRESHOLD = 512 << 20;
+    /** Config key of the number of earlier blobs tried as delta bases. */
+    static final String DELTA_WINDOW = "pack.window";
+    /** Default of pack.window. */
+    static final int DEFAULT_DELTA_WINDOW = 10;
+    /** Config key of the longest chain of deltas in a pack. */
+    static final String DELTA_DEPTH = "pack.depth";
+    /** Default of pack.depth. */
+    static final int DEFAULT_DELTA_DEPTH = 10;
+    /** Config key of the size above which blobs are never deltified. */
+    static final String DELTA_SIZE_LIMIT = "pack.deltaSizeLimit";
+    /** Default of pack.deltaSizeLimit. */
+    static final int DEFAULT_DELTA_SIZE_LIMIT = 64 << 20;
+    /** A delta smaller than 1/GOOD_DELTA of its target is taken without
+     * trying the remaining bases. */
+    private static final int GOOD_DELTA = 16;
+    /** Compression level of this repository, loaded on first write. */
+    private static Integer _compression;
+    /** Size from which blobs are chunked, loaded on first write. */
+    private static Long _chunkThreshold;
+    /** Packs of this repository, opened on first use. */
+    private static List<Pack> _packs;
+
+    /** Location of the commit with the given hash.
+     * @param hash commit hash
+     * @return file location
+     */
+    public static File commitFile(String hash) {
+        return objectFile(Gitlet.COMMIT_FOLDER, hash);
+    }
+
+    /** Location of the blob with the given hash.
+     * @param hash blob hash
+     * @return file location
+     */
+    public static File blobFile(String hash) {
+        return objectFile(Gitlet.BLOB_FOLDER, hash);
+    }
+
+    /** Location of the tree with the given hash.
+     * @param hash tree hash
+     * @return file location
+     */
+    static File treeFile(String hash) {
+        return objectFile(Gitlet.TREE_FOLDER, hash);
+    }
+
+    /** Location of an object inside a sharded folder.
+     * @param folder commit, tree or blob folder
+     * @param hash object hash
+     * @return file location
+     */
+    static File objectFile(File folder, String hash) {
+        if (hash.length() <= SHARD_LENGTH) {
+            return Utils.join(folder, hash);
+        }
+        return Utils.join(folder, hash.substring(0, SHARD_LENGTH),
+                hash.substring(SHARD_LENGTH));
+    }
+
+    /** Contents of a blob.
+     * @param hash blob hash
+     * @return contents
+     */
+    public static byte[] readBlob(String hash) {
+        try (InputStream in = openBlob(hash)) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Open the contents of a blob for reading.
+     * @param hash blob hash
+     * @return stream of the contents
+     */
+    public static InputStream openBlob(String hash) {
+        return openObject(Pack.BLOB, hash);
+    }
+
+    /** Contents of a blob as a String.
+     * @param hash blob hash
+     * @return contents
+     */
+    public static String readBlobAsString(String hash) {
+        return new String(readBlob(hash), StandardCharsets.UTF_8);
+    }
+
+    /** Open the serialized form of a commit for reading.
+     * @param hash commit hash
+     * @return stream of the serialized commit
+     */
+    public static InputStream openCommit(String hash) {
+        return openObject(Pack.COMMIT, hash);
+    }
+
+    /** Open the encoded form of a tree for reading.
+     * @param hash tree hash
+     * @return stream of the encoded tree
+     */
+    static InputStream openTree(String hash) {
+        return openObject(Pack.TREE, hash);
+    }
+
+    /** Open an object, from a pack if one holds it and from its loose file
+     * otherwise.
+     * @param type Pack.COMMIT, Pack.TREE or Pack.BLOB
+     * @param hash object hash
+     * @return stream of the contents
+     */
+    static InputStream openObject(byte type, String hash) {
+        for (Pack pack : packs()) {
+            int i = pack.find(hash, type);
+            if (i >= 0) {
+                return pack.open(i);
+            }
+        }
+        try {
+            return open(objectFile(folder(type), hash));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Is an object stored, packed or loose.
+     * @param type Pack.COMMIT, Pack.TREE or Pack.BLOB
+     * @param hash full object hash
+     * @return yes or no
+     */
+    static boolean hasObject(byte type, String hash) {
+        for (Pack pack : packs()) {
+            if (pack.find(hash, type) >= 0) {
+                return true;
+            }
+        }
+        return objectFile(folder(type), hash).isFile();
+    }
+
+    /** The folder of the loose objects of a type.
+     * @param type Pack.COMMIT, Pack.TREE or Pack.BLOB
+     * @return commit or blob folder
+     */
+    static File folder(byte type) {
+        switch (type) {
+        case Pack.COMMIT:
+            return Gitlet.COMMIT_FOLDER;
+        case Pack.TREE:
+            return Gitlet.TREE_FOLDER;
+        default:
+            return Gitlet.BLOB_FOLDER;
+        }
+    }
+
+    /** The packs of this repository.
+     * @return packs
+     */
+    static synchronized List<Pack> packs() {
+        if (_packs == null) {
+            _packs = Pack.all();
+        }
+        return _packs;
+    }
+
+    /** Store the serialized form of a commit.
+     * @param hash commit hash
+     * @param contents serialized commit
+     */
+    public static void writeCommit(String hash, byte[] contents) {
+        write(commitFile(hash), contents);
+    }
+
+    /** Store the encoded form of a tree.
+     * @param hash tree hash
+     * @param contents encoded tree
+     */
+    static void writeTree(String hash, byte[] contents) {
+        write(treeFile(hash), contents);
+    }
+
+    /** Open an object file, decompressing it if needed.
+     * @param file object file
+     * @return stream of the contents of the object
+     * @throws IOException if the file cannot be read
+     */
+    static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file),
+                BUFFER_SIZE);
+        in.mark(COMPRESSED.length);
+        byte[] head = in.readNBytes(COMPRESSED.length);
+        if (Arrays.equals(head, COMPRESSED)) {
+            return new InflaterInputStream(in);
+        }
+        if (Arrays.equals(head, STORED)) {
+            return in;
+        }
+        if (Arrays.equals(head, Chunks.MAGIC)) {
+            in.close();
+            return Chunks.open(file);
+        }
+        in.reset();
+        return in;
+    }
+
+    /** Write an object file at the repository's compression level.
+     * @param file object file
+     * @param contents contents of the object
+     */
+    static void write(File file, byte[] contents) {
+        install(file, out -> out.write(contents));
+    }
+
+    /** Write an object file by streaming its contents into a temporary
+     * file, which is renamed into place once complete, so that readers
+     * never see a partly written object.
+     * @param file object file
+     * @param contents writes the contents of the object
+     */
+    private static void install(File file, Contents contents) {
+        File temp = null;
+        try {
+            temp = tempFile();
+            try (OutputStream out = compressor(temp)) {
+                contents.writeTo(out);
+            }
+            file.getParentFile().mkdirs();
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** Writes the contents of an object. */
+    private interface Contents {
+        /** Write the contents to OUT.
+         * @param out destination
+         * @throws IOException if writing fails
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /** Store a file as a blob in one streaming pass through a fixed-size
+     * buffer: the bytes are hashed as they are compressed into a temporary
+     * file, which is then renamed to the hash. Memory use does not depend
+     * on the size of the file. A blob already stored loose is freshened
+     * instead; one only in a pack gets a loose copy, so that gc does not
+     * delete it before it is referred to.
+     * @param file file location
+     * @return blob hash
+     */
+    public static String storeBlob(File file) {
+        File temp = null;
+        try {
+            temp = tempFile();
+            MessageDigest digest = sha1();
+            long chunkThreshold = chunkThreshold();
+            if (chunkThreshold > 0 && file.length() >= chunkThreshold) {
+                try (InputStream in = new FileInputStream(file)) {
+                    Utils.writeContents(temp, Chunks.MAGIC,
+                            Chunks.store(in, digest));
+                }
+            } else {
+                try (InputStream in = new FileInputStream(file);
+                     OutputStream out = compressor(temp)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    for (int n = in.read(buffer); n >= 0;
+                         n = in.read(buffer)) {
+                        digest.update(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                    }
+                }
+            }
+            String hash = Pack.toHex(digest.digest());
+            File blob = blobFile(hash);
+            if (!freshen(blob)) {
+                blob.getParentFile().mkdirs();
+                Files.move(temp.toPath(), blob.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            return hash;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** Mark a loose object as just stored, so that gc gives it a full
+     * gc.pruneExpire again before it may delete it, as the object is
+     * about to be referred to. An object that is only in a pack is not
+     * freshened; the caller writes a loose copy of it instead, whose age
+     * gc then goes by.
+     * @param file loose object file
+     * @return whether the file exists
+     */
+    static boolean freshen(File file) {
+        return file.setLastModified(System.currentTimeMillis());
+    }
+
+    /** Write the contents of a blob to a file, streaming them through a
+     * fixed-size buffer.
+     * @param hash blob hash
+     * @param file destination, created or overwritten
+     */
+    public static void copyBlob(String hash, File file) {
+        try (InputStream in = openBlob(hash);
+             OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Where the contents of a blob start in its loose file, if it is
+     * stored there whole and uncompressed, so that the bytes from that
+     * offset on are those of the blob.
+     * @param hash blob hash
+     * @return offset in blobFile(HASH): the length of the header, or 0
+     *         for a file written before headers; -1 if there is no such
+     *         file
+     */
+    static long rawBlobOffset(String hash) {
+        File file = blobFile(hash);
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] head = in.readNBytes(STORED.length);
+            if (Arrays.equals(head, STORED)) {
+                return STORED.length;
+            }
+            if (Arrays.equals(head, COMPRESSED)
+                    || Arrays.equals(head, Chunks.MAGIC)) {
+                return -1;
+            }
+            return 0;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /** SHA-1 hash of the contents of a file, read through a fixed-size
+     * buffer.
+     * @param file file location
+     * @return hash
+     */
+    static String hash(File file) {
+        MessageDigest digest = sha1();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return Pack.toHex(digest.digest());
+    }
+
+    /** A fresh SHA-1 digest.
+     * @return digest
+     */
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support "
+                    + "SHA-1");
+        }
+    }
+
+    /** A new temporary file next to the blobs, on the same file system as
+     * the objects it becomes.
+     * @return file location
+     * @throws IOException if it cannot be created
+     */
+    private static File tempFile() throws IOException {
+        Gitlet.BLOB_FOLDER.mkdirs();
+        return File.createTempFile("tmp-", null, Gitlet.BLOB_FOLDER);
+    }
+
+    /** Open an object file for writing at the repository's compression
+     * level.
+     * @param file object file
+     * @return stream that compresses what is written to it, or stores it
+     *         as it is at level 0, after the matching header
+     * @throws IOException if the file cannot be opened
+     */
+    private static OutputStream compressor(File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(file), BUFFER_SIZE);
+        int level = compression();
+        if (level == 0) {
+            out.write(STORED);
+            return out;
+        }
+        out.write(COMPRESSED);
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /** The compression level configured for this repository.
+     * @return level between -1 and 9
+     */
+    static synchronized int compression() {
+        if (_compression == null) {
+            int level = Config.fromFile().getInt(COMPRESSION,
+                    Deflater.DEFAULT_COMPRESSION);
+            if (level < Deflater.DEFAULT_COMPRESSION
+                    || level > Deflater.BEST_COMPRESSION) {
+                throw new GitletException("Bad value for " + COMPRESSION
+                        + ": " + level);
+            }
+            _compression = level;
+        }
+        return _compression;
+    }
+
+    /** The size from which this repository stores blobs in chunks.
+     * @return size in bytes, or 0 if blobs are never chunked
+     */
+    static synchronized long chunkThreshold() {
+        if (_chunkThreshold == null) {
+            _chunkThreshold = (long) Config.fromFile().getInt(
+                    Chunks.THRESHOLD, 0);
+        }
+        return _chunkThreshold;
+    }
+
+    /** Does a commit with exactly this hash exist.
+     * @param hash full commit hash
+     * @return yes or no
+     */
+    public static boolean hasCommit(String hash) {
+        return hasObject(Pack.COMMIT, hash);
+    }
+
+    /** All commit hashes, in lexicographic order.
+     * @return hashes
+     */
+    public static List<String> commitIds() {
+        return commitIds("");
+    }
+
+    /** All commit hashes starting with PREFIX, in lexicographic order.
+     * When the prefix names a shard only that shard is listed.
+     * @param prefix leading characters of the hash
+     * @return hashes
+     */
+    public static List<String> commitIds(String prefix) {
+        return objectIds(Pack.COMMIT, prefix);
+    }
+
+    /** The commit a full or abbreviated id given by the user names. Only
+     * the shard of the id and the matching range of each pack index are
+     * listed, so this takes time logarithmic in the number of commits
+     * for ids of at least SHARD_LENGTH characters.
+     * @param id leading hex characters of a commit hash
+     * @return full hash
+     * @throws GitletException if no commit or more than one matches
+     */
+    public static String resolveCommit(String id) {
+        String prefix = id.toLowerCase(Locale.ROOT);
+        if (prefix.isEmpty() || prefix.length() > Utils.UID_LENGTH
+                || !prefix.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            throw new GitletException("No commit with that id exists.");
+        }
+        if (prefix.length() == Utils.UID_LENGTH && hasCommit(prefix)) {
+            return prefix;
+        }
+        List<String> matches = commitIds(prefix);
+        if (matches.isEmpty()) {
+            throw new GitletException("No commit with that id exists.");
+        }
+        if (matches.size() > 1) {
+            throw new GitletException("Commit id " + id + " is ambiguous.");
+        }
+        return matches.get(0);
+    }
+
+    /** All hashes of a type starting with PREFIX, packed or loose, in
+     * lexicographic order.
+     * @param type Pack.COMMIT, Pack.TREE or Pack.BLOB
+     * @param prefix leading characters of the hash
+     * @return hashes
+     */
+    static List<String> objectIds(byte type, String prefix) {
+        List<String> loose = objectIds(folder(type), prefix);
+        if (packs().isEmpty()) {
+            return loose;
+        }
+        TreeSet<String> ids = new TreeSet<>(loose);
+        for (Pack pack : packs()) {
+            ids.addAll(pack.ids(prefix, type));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /** All hashes in a sharded folder starting with PREFIX, in
+     * lexicographic order.
+     * @param folder commit or blob folder
+     * @param prefix leading characters of the hash
+     * @return hashes
+     */
+    static List<String> objectIds(File folder, String prefix) {
+        List<String> result = new ArrayList<>();
+        List<String> shards;
+        if (prefix.length() >= SHARD_LENGTH) {
+            shards = List.of(prefix.substring(0, SHARD_LENGTH));
+        } else {
+            shards = shardsIn(folder);
+        }
+        for (String shard : shards) {
+            List<String> names = Utils.plainFilenamesIn(
+                    Utils.join(folder, shard));
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                String hash = shard + name;
+                if (hash.startsWith(prefix)) {
+                    result.add(hash);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Names of the shard directories of a folder, in lexicographic order.
+     * @param folder commit or blob folder
+     * @return shard names
+     */
+    static List<String> shardsIn(File folder) {
+        String[] names = folder.list((dir, name) -> name.length()
+                == SHARD_LENGTH && new File(dir, name).isDirectory());
+        List<String> shards = new ArrayList<>();
+        if (names != null) {
+            Arrays.sort(names);
+            shards.addAll(List.of(names));
+        }
+        return shards;
+    }
+
+    /** Packs every loose object, together with the contents of the
+     * existing packs, into new packs, then removes what was packed. Blobs
+     * bigger than pack.bigFileThreshold stay loose, and so do chunked
+     * blobs, whose chunks are already shared between versions. */
+    static void repack() {
+        repack(hash -> true);
+    }
+
+    /** Like repack(), but objects for which KEEP is false are left out of
+     * the new packs. Loose objects left out stay where they are.
+     * @param keep which commits, trees and blobs to pack
+     */
+    static void repack(Predicate<String> keep) {
+        Config config = Config.fromFile();
+        long threshold = config.getInt(BIG_FILE_THRESHOLD,
+                DEFAULT_BIG_FILE_THRESHOLD);
+        List<Pack> old = packs();
+        Pack.Writer writer = new Pack.Writer(compression());
+        List<File> packed = new ArrayList<>();
+        List<String> commits = new ArrayList<>();
+        for (byte type : new byte[] {Pack.COMMIT, Pack.TREE}) {
+            for (String hash : objectIds(type, "")) {
+                if (!keep.test(hash)) {
+                    continue;
+                }
+                if (type == Pack.COMMIT) {
+                    commits.add(hash);
+                }
+                File file = objectFile(folder(type), hash);
+                if (file.isFile()) {
+                    try {
+                        writer.add(hash, type, open(file));
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException(e.getMessage());
+                    }
+                    packed.add(file);
+                } else {
+                    writer.add(hash, type, openObject(type, hash));
+                }
+            }
+        }
+        List<String> blobs = new ArrayList<>();
+        for (String hash : objectIds(Pack.BLOB, "")) {
+            File file = blobFile(hash);
+            if (!keep.test(hash)) {
+                continue;
+            }
+            if (file.isFile()) {
+                if (file.length() > threshold || Chunks.isChunked(file)) {
+                    continue;
+                }
+                packed.add(file);
+            }
+            blobs.add(hash);
+        }
+        packBlobs(writer, commits, blobs, config);
+        List<File> written = writer.finish();
+        for (Pack pack : old) {
+            if (!written.contains(pack.indexFile())) {
+                pack.indexFile().delete();
+                pack.file().delete();
+            }
+        }
+        for (File file : packed) {
+            file.delete();
+            file.getParentFile().delete();
+        }
+        reopenPacks();
+    }
+
+    /** Forget the packs opened so far, so that the next lookup sees the
+     * packs as they are on disk now. */
+    static synchronized void reopenPacks() {
+        _packs = null;
+    }
+
+    /** Write blobs into a pack, storing them as deltas where that pays.
+     * Blobs are ordered by the first path they appear under and then by
+     * the time of that commit, found by walking the trees of the commits
+     * once each, so each version of a file is compared with
+     * the few versions just before it (pack.window of them) and stored as
+     * a delta against the closest one. Chains of deltas are kept at most
+     * pack.depth long, so reading a blob back applies few deltas.
+     * @param writer pack writer
+     * @param commits hashes of the commits, which give blobs their paths
+     * @param blobs hashes of the blobs
+     * @param config repository settings
+     */
+    private static void packBlobs(Pack.Writer writer, List<String> commits,
+                                  List<String> blobs, Config config) {
+        int window = config.getInt(DELTA_WINDOW, DEFAULT_DELTA_WINDOW);
+        int maxDepth = config.getInt(DELTA_DEPTH, DEFAULT_DELTA_DEPTH);
+        long limit = config.getInt(DELTA_SIZE_LIMIT,
+                DEFAULT_DELTA_SIZE_LIMIT);
+
+        List<Commit> history = new ArrayList<>();
+        for (String id : commits) {
+            history.add(Commit.headerFromFile(id));
+        }
+        history.sort(Comparator.comparingLong(ObjectStore::time));
+        HashMap<String, String> paths = new HashMap<>();
+        HashMap<String, Long> times = new HashMap<>();
+        HashSet<String> trees = new HashSet<>();
+        for (Commit commit : history) {
+            recordTree(commit.getTree(), "", time(commit), trees, paths,
+                    times);
+        }
+        blobs.sort(Comparator.comparing((String b) -> paths.getOrDefault(b,
+                "")).thenComparing(b -> times.getOrDefault(b,
+                Long.MAX_VALUE)).thenComparing(b -> b));
+
+        ArrayDeque<DeltaBase> recent = new ArrayDeque<>();
+        for (String hash : blobs) {
+            byte[] data = null;
+            if (window > 0 && blobSize(hash) <= limit) {
+                data = readBlob(hash);
+            }
+            if (data == null) {
+                writer.add(hash, Pack.BLOB, openBlob(hash));
+                continue;
+            }
+            DeltaBase best = null;
+            byte[] bestDelta = null;
+            Iterator<DeltaBase> candidates = recent.descendingIterator();
+            while (candidates.hasNext()) {
+                DeltaBase base = candidates.next();
+                int larger = Math.max(base._data.length, data.length);
+                if (base._depth >= maxDepth || Math.abs(base._data.length
+                        - data.length) > larger / 2) {
+                    continue;
+                }
+                byte[] delta = Delta.create(base._data, data);
+                if (delta.length < data.length / 2 && (bestDelta == null
+                        || delta.length < bestDelta.length)) {
+                    best = base;
+                    bestDelta = delta;
+                    if (delta.length < data.length / GOOD_DELTA) {
+                        break;
+                    }
+                }
+            }
+            int depth = 0;
+            if (best == null) {
+                writer.add(hash, Pack.BLOB, new ByteArrayInputStream(data));
+            } else {
+                writer.addDelta(hash, best._hash, bestDelta, data.length);
+                depth = best._depth + 1;
+            }
+            recent.addLast(new DeltaBase(hash, data, depth));
+            if (recent.size() > window) {
+                recent.removeFirst();
+            }
+        }
+    }
+
+    /** Record the path and commit time of each blob in a tree not seen
+     * before that has none recorded yet. Trees are visited oldest commit
+     * first, so a blob is recorded from the first commit that has it. A
+     * tree seen before is skipped with everything under it, as each of
+     * its blobs was recorded then, so a tree shared by many commits is
+     * read once.
+     * @param hash tree hash, or null for an empty snapshot
+     * @param prefix path of the tree's directory, ending in '/' unless it
+     *               is the root
+     * @param time time of the commit
+     * @param seen trees visited so far
+     * @param paths first path of each blob
+     * @param times time of the first commit with each blob
+     */
+    private static void recordTree(String hash, String prefix, long time,
+                                   Set<String> seen,
+                                   Map<String, String> paths,
+                                   Map<String, Long> times) {
+        if (hash == null || !seen.add(hash)) {
+            return;
+        }
+        Tree tree = Tree.fromFile(hash);
+        for (Map.Entry<String, String> file : tree.getFiles().entrySet()) {
+            if (times.putIfAbsent(file.getValue(), time) == null) {
+                paths.put(file.getValue(), prefix + file.getKey());
+            }
+        }
+        for (Map.Entry<String, String> dir : tree.getDirs().entrySet()) {
+            recordTree(dir.getValue(), prefix + dir.getKey() + "/", time,
+                    seen, paths, times);
+        }
+    }
+
+    /** Time of a commit, for ordering.
+     * @param commit commit
+     * @return milliseconds since the epoch
+     */
+    private static long time(Commit commit) {
+        return commit.getTimestamp() == null ? Commit.NO_TIME
+                : commit.getTimestamp().getTime();
+    }
+
+    /** Size of a blob.
+     * @param hash blob hash
+     * @return size in bytes
+     */
+    static long blobSize(String hash) {
+        for (Pack pack : packs()) {
+            int i = pack.find(hash, Pack.BLOB);
+            if (i >= 0) {
+                return pack.size(i);
+            }
+        }
+        File file = blobFile(hash);
+        if (Chunks.isChunked(file)) {
+            return Chunks.size(file);
+        }
+        long offset = rawBlobOffset(hash);
+        if (offset >= 0) {
+            return file.length() - offset;
+        }
+        try (InputStream in = open(file)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** A recently packed blob that later blobs may be stored against. */
+    private static class DeltaBase {
+
+        /** Hash of the blob. */
+        private String _hash;
+        /** Contents of the blob. */
+        private byte[] _data;
+        /** Number of deltas applied to read the blob back. */
+        private int _depth;
+
+        /** A packed blob.
+         * @param hash blob hash
+         * @param data contents
+         * @param depth length of its delta chain
+         */
+        DeltaBase(String hash, byte[] data, int depth) {
+            _hash = hash;
+            _data = data;
+            _depth = depth;
+        }
+    }
+
+    /** Moves the files of a flat, unsharded folder into their shards.
+     * Files that are already in place are left alone, so an interrupted
+     * migration can simply be run again. Temporary files left by an
+     * interrupted store are not objects; they stay where gc looks for
+     * them.
+     * @param folder commit or blob folder
+     */
+    static void shard(File folder) {
+        List<String> names = Utils.plainFilenamesIn(folder);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.length() <= SHARD_LENGTH || name.startsWith("tmp-")) {
+                continue;
+            }
+            File to = objectFile(folder, name);
+            to.getParentFile().mkdirs();
+            if (to.exists()) {
+                Utils.join(folder, name).delete();
+            } else if (!Utils.join(folder, name).renameTo(to)) {
+                throw new IllegalArgumentException("could not move "
+                        + name + " into its shard");
+            }
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** A pack holds many objects in a single file, next to a sorted index of
+ * (hash, type, offset) records. Both files are memory-mapped when the pack
+ * is opened, so finding an object is a binary search over the index and
+ * reading it touches only the pages it lives on.
+ *
+ * A pack entry is a type byte, the inflated size and the deflated length
+ * as longs, followed by the deflated contents. The index starts with a
+ * fan-out table of 256 cumulative counts keyed on the first byte of the
+ * hash, then holds fixed-width records sorted by hash.
+ *
+ * A blob may be stored as a DELTA entry instead, which puts the hash of
+ * its base blob before the deflated delta. The base is read back through
+ * ObjectStore, so it may live in any pack.
+ * @author Tim Li
+ */
+class Pack {
+
+    /** Type of a commit entry. */
+    static final byte COMMIT = 1;
+    /** Type of a blob entry. */
+    static final byte BLOB = 2;
+    /** Type of a blob entry stored as a delta against another blob. The
+     * index lists such entries as BLOB. */
+    static final byte DELTA = 3;
+    /** Type of a tree entry. */
+    static final byte TREE = 4;
+    /** Largest pack written before starting a new one. Keeps every pack
+     * small enough to be mapped as a single buffer. */
+    static final long MAX_PACK_SIZE = 1L << 30;
+    /** Header of a pack file. */
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    /** Header of an index file. */
+    private static final byte[] INDEX_MAGIC = {'G', 'I', 'D', 'X'};
+    /** Format version of packs and indexes. */
+    private static final int VERSION = 1;
+    /** Length of the magic, version and count at the start of a file. */
+    private static final int HEADER = 12;
+    /** Number of entries in the fan-out table. */
+    private static final int FANOUT = 256;
+    /** Length of a hash in bytes. */
+    private static final int HASH_BYTES = Utils.UID_LENGTH / 2;
+    /** Length of an index record: hash, type, padding, offset. */
+    private static final int RECORD = 32;
+    /** Offset of the first index record. */
+    private static final int RECORDS = HEADER + FANOUT * 4;
+    /** Length of an entry header: type, size, deflated length. */
+    private static final int ENTRY_HEADER = 17;
+
+    /** The pack file. */
+    private File _file;
+    /** The index file. */
+    private File _indexFile;
+    /** The mapped index. */
+    private MappedByteBuffer _index;
+    /** The mapped pack. */
+    private MappedByteBuffer _data;
+    /** Number of objects in the pack. */
+    private int _count;
+
+    /** Opens the pack whose index is INDEX.
+     * @param index index file
+     */
+    Pack(File index) {
+        String name = index.getName();
+        _indexFile = index;
+        _file = new File(index.getParentFile(),
+                name.substring(0, name.length() - ".idx".length())
+                        + ".pack");
+        _index = map(index);
+        _data = map(_file);
+        byte[] magic = new byte[INDEX_MAGIC.length];
+        _index.get(0, magic);
+        if (!Arrays.equals(magic, INDEX_MAGIC)
+                || _index.getInt(INDEX_MAGIC.length) != VERSION) {
+            throw new IllegalArgumentException("bad pack index " + name);
+        }
+        _count = _index.getInt(INDEX_MAGIC.length + 4);
+    }
+
+    /** All packs of this repository, sorted by name. Files still being
+     * written, and any left behind by a crash, are not packs.
+     * @return packs
+     */
+    static List<Pack> all() {
+        List<Pack> packs = new ArrayList<>();
+        String[] names = Gitlet.PACK_FOLDER.list((dir, name) ->
+                name.endsWith(".idx") && !name.startsWith("tmp-"));
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                packs.add(new Pack(Utils.join(Gitlet.PACK_FOLDER, name)));
+            }
+        }
+        return packs;
+    }
+
+    /** Map a whole file read-only.
+     * @param file file location
+     * @return mapped contents
+     */
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Number of objects.
+     * @return count
+     */
+    int count() {
+        return _count;
+    }
+
+    /** The pack file.
+     * @return file location
+     */
+    File file() {
+        return _file;
+    }
+
+    /** The index file.
+     * @return file location
+     */
+    File indexFile() {
+        return _indexFile;
+    }
+
+    /** The hash of the Ith object in hash order.
+     * @param i record number
+     * @return hash
+     */
+    String id(int i) {
+        byte[] hash = new byte[HASH_BYTES];
+        _index.get(RECORDS + i * RECORD, hash);
+        return toHex(hash);
+    }
+
+    /** The type of the Ith object.
+     * @param i record number
+     * @return COMMIT, TREE or BLOB
+     */
+    byte type(int i) {
+        return _index.get(RECORDS + i * RECORD + HASH_BYTES);
+    }
+
+    /** Offset of the entry of the Ith object in the pack.
+     * @param i record number
+     * @return offset
+     */
+    private long offset(int i) {
+        return _index.getLong(RECORDS + i * RECORD + HASH_BYTES + 4);
+    }
+
+    /** First record whose hash is at least KEY, given as hex.
+     * @param key full hash or prefix
+     * @return record number, which is count() if there is none
+     */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = _count;
+        if (key.length() >= 2) {
+            int high = Character.digit(key.charAt(0), 16);
+            int low = Character.digit(key.charAt(1), 16);
+            if (high < 0 || low < 0) {
+                return _count;
+            }
+            int first = high * 16 + low;
+            lo = first == 0 ? 0 : _index.getInt(HEADER + (first - 1) * 4);
+            hi = _index.getInt(HEADER + first * 4);
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (id(mid).compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Find an object.
+     * @param hash full hash
+     * @param type COMMIT, TREE or BLOB
+     * @return record number, or -1 if the pack does not hold it
+     */
+    int find(String hash, byte type) {
+        for (int i = lowerBound(hash); i < _count && id(i).equals(hash);
+             i += 1) {
+            if (type(i) == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Hashes of the objects of a type starting with PREFIX, in order.
+     * @param prefix leading characters of the hash
+     * @param type COMMIT, TREE or BLOB
+     * @return hashes
+     */
+    List<String> ids(String prefix, byte type) {
+        List<String> result = new ArrayList<>();
+        for (int i = lowerBound(prefix); i < _count; i += 1) {
+            String id = id(i);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            if (type(i) == type) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /** Inflated size of the Ith object.
+     * @param i record number
+     * @return size in bytes
+     */
+    long size(int i) {
+        return _data.getLong((int) offset(i) + 1);
+    }
+
+    /** Open the contents of the Ith object.
+     * @param i record number
+     * @return stream of the contents
+     */
+    InputStream open(int i) {
+        int at = (int) offset(i);
+        int length = (int) _data.getLong(at + 9);
+        if (_data.get(at) != DELTA) {
+            return new InflaterInputStream(new BufferStream(
+                    _data.slice(at + ENTRY_HEADER, length)));
+        }
+        byte[] base = new byte[HASH_BYTES];
+        _data.get(at + ENTRY_HEADER, base);
+        try (InputStream in = new InflaterInputStream(new BufferStream(
+                _data.slice(at + ENTRY_HEADER + HASH_BYTES, length)))) {
+            byte[] target = Delta.apply(ObjectStore.readBlob(toHex(base)),
+                    in.readAllBytes(), (int) size(i));
+            return new ByteArrayInputStream(target);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** The hash of the base of the Ith object, if it is a delta.
+     * @param i record number
+     * @return base hash, or null if the object is stored whole
+     */
+    String base(int i) {
+        int at = (int) offset(i);
+        if (_data.get(at) != DELTA) {
+            return null;
+        }
+        byte[] base = new byte[HASH_BYTES];
+        _data.get(at + ENTRY_HEADER, base);
+        return toHex(base);
+    }
+
+    /** Reads a byte buffer as a stream. */
+    private static class BufferStream extends InputStream {
+
+        /** Remaining contents. */
+        private ByteBuffer _buf;
+
+        /** Stream over BUF.
+         * @param buf contents
+         */
+        BufferStream(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return _buf.hasRemaining() ? _buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!_buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, _buf.remaining());
+            _buf.get(b, off, len);
+            return len;
+        }
+    }
+
+    /** Hex form of a binary hash.
+     * @param hash binary hash
+     * @return hex hash
+     */
+    static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i += 1) {
+            hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(hash[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    /** Binary form of a hex hash.
+     * @param hex hex hash
+     * @return binary hash
+     */
+    static byte[] fromHex(String hex) {
+        byte[] hash = new byte[hex.length() / 2];
+        for (int i = 0; i < hash.length; i += 1) {
+            hash[i] = (byte) Integer.parseInt(
+                    hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return hash;
+    }
+
+    /** Writes new packs. Objects are appended one at a time; the pack is
+     * named after its contents and its index is written by finish(). */
+    static class Writer {
+
+        /** Compression level of the entries. */
+        private int _level;
+        /** The pack being written. */
+        private FileChannel _channel;
+        /** Temporary location of the pack being written. */
+        private File _temp;
+        /** Hashes of the objects in the pack being written. */
+        private List<String> _ids;
+        /** Types of the objects, parallel to _ids. */
+        private List<Byte> _types;
+        /** Offsets of the objects, parallel to _ids. */
+        private List<Long> _offsets;
+        /** Index files of the finished packs. */
+        private List<File> _written;
+
+        /** A writer deflating at LEVEL.
+         * @param level compression level
+         */
+        Writer(int level) {
+            _level = level;
+            _written = new ArrayList<>();
+        }
+
+        /** Append an object.
+         * @param hash object hash
+         * @param type COMMIT, TREE or BLOB
+         * @param contents stream of the contents, closed when done
+         */
+        void add(String hash, byte type, InputStream contents) {
+            entry(hash, type, null, -1, contents);
+        }
+
+        /** Append a blob as a delta against another blob.
+         * @param hash blob hash
+         * @param base hash of the base blob
+         * @param delta instructions made by Delta.create
+         * @param size size of the blob
+         */
+        void addDelta(String hash, String base, byte[] delta, long size) {
+            entry(hash, DELTA, fromHex(base), size,
+                    new ByteArrayInputStream(delta));
+        }
+
+        /** Append an entry.
+         * @param hash object hash
+         * @param type COMMIT, TREE, BLOB or DELTA
+         * @param base binary hash of the base of a DELTA, or null
+         * @param size inflated size, or -1 to count the contents
+         * @param contents stream of the contents, closed when done
+         */
+        private void entry(String hash, byte type, byte[] base, long size,
+                           InputStream contents) {
+            try (InputStream in = contents) {
+                if (_channel != null && _channel.size() > MAX_PACK_SIZE) {
+                    finishPack();
+                }
+                if (_channel == null) {
+                    startPack();
+                }
+                long at = _channel.size();
+                long start = at + ENTRY_HEADER;
+                if (base != null) {
+                    _channel.write(ByteBuffer.wrap(base), start);
+                    start += base.length;
+                }
+                _channel.position(start);
+                long length;
+                Deflater deflater = new Deflater(_level);
+                try {
+                    DeflaterOutputStream z = new DeflaterOutputStream(
+                            Channels.newOutputStream(_channel), deflater,
+                            ObjectStore.BUFFER_SIZE);
+                    length = in.transferTo(z);
+                    z.finish();
+                } finally {
+                    deflater.end();
+                }
+                if (size < 0) {
+                    size = length;
+                }
+                ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+                header.put(type).putLong(size)
+                        .putLong(_channel.position() - start).flip();
+                _channel.write(header, at);
+                _ids.add(hash);
+                _types.add(type == DELTA ? BLOB : type);
+                _offsets.add(at);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+
+        /** Finish the last pack.
+         * @return index files of all packs written
+         */
+        List<File> finish() {
+            try {
+                if (_channel != null) {
+                    finishPack();
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            return _written;
+        }
+
+        /** Start a new pack.
+         * @throws IOException if it cannot be created
+         */
+        private void startPack() throws IOException {
+            Gitlet.PACK_FOLDER.mkdirs();
+            _temp = File.createTempFile("tmp-", ".pack.tmp",
+                    Gitlet.PACK_FOLDER);
+            _channel = new RandomAccessFile(_temp, "rw").getChannel();
+            _channel.write(ByteBuffer.allocate(HEADER).put(PACK_MAGIC)
+                    .putInt(VERSION).putInt(0).flip());
+            _ids = new ArrayList<>();
+            _types = new ArrayList<>();
+            _offsets = new ArrayList<>();
+        }
+
+        /** Write the index of the current pack and give both their final
+         * names. Both are written under names ending in .tmp, which all()
+         * does not open, and the index is renamed only once the pack is in
+         * place, so readers never see a partial index or an index without
+         * its pack.
+         * @throws IOException if they cannot be written
+         */
+        private void finishPack() throws IOException {
+            int count = _ids.size();
+            _channel.write(ByteBuffer.allocate(4).putInt(count).flip(),
+                    PACK_MAGIC.length + 4);
+            _channel.force(true);
+            _channel.close();
+            _channel = null;
+
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i += 1) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> _ids.get(a).compareTo(_ids.get(b)));
+            String name = "pack-" + Utils.sha1(String.join("", _ids));
+
+            ByteBuffer index = ByteBuffer.allocate(RECORDS + count * RECORD);
+            index.put(INDEX_MAGIC).putInt(VERSION).putInt(count);
+            int[] fanout = new int[FANOUT];
+            for (String id : _ids) {
+                fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+            }
+            for (int i = 0, total = 0; i < FANOUT; i += 1) {
+                total += fanout[i];
+                index.putInt(total);
+            }
+            for (int i : order) {
+                index.put(fromHex(_ids.get(i))).put(_types.get(i))
+                        .put(new byte[3]).putLong(_offsets.get(i));
+            }
+            File tempIndex = File.createTempFile("tmp-", ".idx.tmp",
+                    Gitlet.PACK_FOLDER);
+            try (OutputStream out = new FileOutputStream(
+                    tempIndex)) {
+                out.write(index.array());
+            }
+            File pack = Utils.join(Gitlet.PACK_FOLDER, name + ".pack");
+            File idx = Utils.join(Gitlet.PACK_FOLDER, name + ".idx");
+            if (idx.exists()) {
+                _temp.delete();
+                tempIndex.delete();
+            } else if (!_temp.renameTo(pack) || !tempIndex.renameTo(idx)) {
+                throw new IllegalArgumentException("could not name pack "
+                        + name);
+            }
+            _written.add(idx);
+        }
+    }
+}
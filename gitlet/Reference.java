@@ -1,15 +1,25 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.TreeSet;
 
 /** A serializable class that stores references to things that Gitlet class
- * needs.
+ * needs. It is stored as its header, then the working directory, head,
+ * current branch and branches.
  * @author Tim Li
  */
 public class Reference implements Serializable {
 
+    /** Pinned so that files written by earlier versions stay readable. */
+    private static final long serialVersionUID = 3656028613069034222L;
+
+    /** Header of the reference file. */
+    static final byte[] MAGIC = {'G', 'R', 'F', '1'};
     /** File location. */
     public static final File FILE = new File(".gitlet/ref");
     /** Current working directory. */
@@ -31,7 +41,21 @@ public class Reference implements Serializable {
      */
     public static Reference fromFile() {
         assert (FILE.exists());
-        return Utils.readObject(FILE, Reference.class);
+        byte[] bytes = Utils.readContents(FILE);
+        if (Codec.isSerialized(bytes)) {
+            return Utils.readObject(FILE, Reference.class);
+        }
+        Codec.Reader in = new Codec.Reader(bytes);
+        in.readHeader(MAGIC);
+        Reference ref = new Reference(in.readString());
+        ref._head = in.readHash();
+        ref._current = in.readString();
+        int size = in.readVarint();
+        for (int i = 0; i < size; i += 1) {
+            String name = in.readString();
+            ref._branches.put(name, in.readHash());
+        }
+        return ref;
     }
 
     /** Adds branch to Branches.
@@ -62,7 +86,21 @@ public class Reference implements Serializable {
 
     /** Persistence function that saves the Reference object. */
     public void saveFile() {
-        Utils.writeObject(FILE, this);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            Codec.writeString(out, _cwd.getPath());
+            Codec.writeHash(out, _head);
+            Codec.writeString(out, _current);
+            Codec.writeVarint(out, _branches.size());
+            for (String name : new TreeSet<>(_branches.keySet())) {
+                Codec.writeString(out, name);
+                Codec.writeHash(out, _branches.get(name));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Utils.writeContents(FILE, bytes.toByteArray());
     }
 
     /** Cwd getter.
@@ -0,0 +1,150 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** The slice of the tree a sparse checkout keeps in the working directory,
+ * read from .gitlet/sparse-checkout, one glob per line in the syntax of
+ * .gitletignore, matched against whole paths from the root. A path is in
+ * the slice if a glob matches it or one of the directories it is in, so
+ * "src/app" keeps everything under src/app. Without the file, or with no
+ * globs in it, the slice is the whole tree.
+ *
+ * Paths outside the slice are neither written by checkout, reset and
+ * merge nor listed from the working directory, and the files tracked
+ * there count as unchanged. A directory is only entered if something in
+ * it could be in the slice, which is judged from the part of each glob
+ * before its first wildcard.
+ * @author Tim Li
+ */
+class Sparse {
+
+    /** File of the globs. */
+    static final File FILE = new File(".gitlet/sparse-checkout");
+    /** Characters that make a glob more than a path. */
+    private static final Pattern WILDCARD = Pattern.compile("[*?\\[{]");
+
+    /** The globs, as written. */
+    private List<String> _patterns;
+    /** The globs, compiled. */
+    private List<PathMatcher> _globs;
+    /** The longest path each glob starts with: the whole glob if it has
+     * no wildcard, or the directories before its first wildcard. */
+    private List<String> _prefixes;
+    /** Whether each glob has a wildcard after its prefix. */
+    private List<Boolean> _wild;
+
+    /** The slice of PATTERNS.
+     * @param patterns globs, with or without a leading '/'
+     */
+    Sparse(List<String> patterns) {
+        _patterns = new ArrayList<>();
+        _globs = new ArrayList<>();
+        _prefixes = new ArrayList<>();
+        _wild = new ArrayList<>();
+        for (String line : patterns) {
+            String glob = line.strip();
+            while (glob.startsWith("/")) {
+                glob = glob.substring(1);
+            }
+            while (glob.endsWith("/")) {
+                glob = glob.substring(0, glob.length() - 1);
+            }
+            if (glob.isEmpty() || glob.startsWith("#")) {
+                continue;
+            }
+            _patterns.add(glob);
+            _globs.add(FileSystems.getDefault().getPathMatcher("glob:"
+                    + glob));
+            Matcher wildcard = WILDCARD.matcher(glob);
+            boolean wild = wildcard.find();
+            _wild.add(wild);
+            _prefixes.add(!wild ? glob
+                    : glob.substring(0, Math.max(0,
+                            glob.lastIndexOf('/', wildcard.start()))));
+        }
+    }
+
+    /** The slice of this repository.
+     * @return slice
+     */
+    static Sparse fromFile() {
+        if (!FILE.isFile()) {
+            return new Sparse(Collections.emptyList());
+        }
+        return new Sparse(List.of(Utils.readContentsAsString(FILE)
+                .split("\n")));
+    }
+
+    /** Save the globs, or delete the file if there are none. */
+    void saveFile() {
+        if (isAll()) {
+            FILE.delete();
+        } else {
+            Utils.writeContents(FILE, String.join("\n", _patterns) + "\n");
+        }
+    }
+
+    /** The globs.
+     * @return globs, without a leading or trailing '/'
+     */
+    List<String> patterns() {
+        return Collections.unmodifiableList(_patterns);
+    }
+
+    /** Is the slice the whole tree.
+     * @return yes or no
+     */
+    boolean isAll() {
+        return _patterns.isEmpty();
+    }
+
+    /** Is PATH in the slice.
+     * @param path path relative to the working directory, with '/'
+     * @return yes or no
+     */
+    boolean includes(String path) {
+        if (isAll()) {
+            return true;
+        }
+        for (int slash = path.length(); slash > 0;
+             slash = path.lastIndexOf('/', slash - 1)) {
+            Path prefix = Paths.get(path.substring(0, slash));
+            for (PathMatcher glob : _globs) {
+                if (glob.matches(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Could anything under the directory DIR be in the slice: DIR is on
+     * the way to the prefix of a glob, or, for a glob with wildcards, is
+     * under its prefix, where the wildcards may match anything.
+     * @param dir path of a directory, with '/'
+     * @return yes or no
+     */
+    boolean mayContain(String dir) {
+        if (isAll() || includes(dir)) {
+            return true;
+        }
+        for (int i = 0; i < _prefixes.size(); i += 1) {
+            String prefix = _prefixes.get(i);
+            if (prefix.isEmpty() || prefix.equals(dir)
+                    || prefix.startsWith(dir + "/")
+                    || _wild.get(i) && dir.startsWith(prefix + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
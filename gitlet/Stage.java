@@ -1,14 +1,22 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
 
 /** A data structure that manages the files need to be added or removed.
+ * It is stored as its header, then the additions and the removals.
  * @author Tim Li */
 public class Stage implements Serializable {
 
+    /** Pinned so that files written by earlier versions stay readable. */
+    private static final long serialVersionUID = -5949654371741895147L;
+
+    /** Header of the stage file. */
+    static final byte[] MAGIC = {'G', 'S', 'T', '1'};
     /** file location. */
     public static final File FILE = new File(".gitlet/stage");
     /** blobs staged for addition, file name as keys and hash as values. */
@@ -30,63 +38,56 @@ public class Stage implements Serializable {
     /** Persistence function that loads the stage object.
      *  @return the stage object */
     public static Stage fromFile() {
-        return Utils.readObject(FILE, Stage.class);
+        byte[] bytes = Utils.readContents(FILE);
+        if (Codec.isSerialized(bytes)) {
+            return Utils.readObject(FILE, Stage.class);
+        }
+        Stage stage = new Stage();
+        Codec.Reader in = new Codec.Reader(bytes);
+        in.readHeader(MAGIC);
+        stage._additions = in.readMap();
+        stage._removals = in.readMap();
+        return stage;
     }
 
     /** Persistence function that saves the stage object. */
     public void saveFile() {
-        Utils.writeObject(FILE, this);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            Codec.writeMap(out, _additions);
+            Codec.writeMap(out, _removals);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Utils.writeContents(FILE, bytes.toByteArray());
     }
 
-    /** Adds file to staging area.
+    /** Adds file to staging area. The blob must already be stored; a
+     *  blob replaced by it is left for gc, as a commit may share it.
      *  @param name file name
-     *  @param from file location
      *  @param hash file hash */
-    public void add(String name, File from, String hash) {
-        File to = Utils.join(Gitlet.BLOB_FOLDER, hash);
-
-        if (_additions.containsKey(name)) {
-            File blob = Utils.join(Gitlet.BLOB_FOLDER, _additions.get(name));
-            if (blob.exists()) {
-                blob.delete();
-            }
-
-            try {
-                to.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            Utils.writeContents(to, Utils.readContents(from));
-            _additions.replace(name, hash);
-
-        } else {
-            try {
-                to.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            Utils.writeContents(to, Utils.readContents(from));
-            _additions.put(name, hash);
-        }
+    public void add(String name, String hash) {
+        _additions.put(name, hash);
     }
 
     /** Add file to be removed in staging area.
-     *  @param file file location
+     *  @param cwd working directory
+     *  @param name path of the file
      *  @param head the head commit object */
-    public void remove(File file, Commit head) {
-        _additions.remove(file.getName());
+    public void remove(File cwd, String name, Commit head) {
+        _additions.remove(name);
 
-        if (head.containsFile(file.getName())) {
-            String hash = head.getBlobs().get(file.getName());
+        if (head.containsFile(name)) {
+            String hash = head.getHash(name);
+            File file = Utils.join(cwd, name);
 
             if (file.exists()) {
                 hash = Gitlet.hash(file);
-                Utils.restrictedDelete(file);
+                Gitlet.deleteFile(cwd, name);
             }
 
-            _removals.put(file.getName(), hash);
+            _removals.put(name, hash);
         }
     }
 
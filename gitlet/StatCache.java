@@ -0,0 +1,286 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** The blob hash of each working file as of its last stat, so that a file
+ * whose size, modification time and inode have not changed since is not
+ * read again. Like the index of git, it is only a cache: a missing or
+ * unreadable file just means every file is hashed.
+ *
+ * A file changed twice within the resolution of its modification time
+ * could keep the same stat. So a file modified less than RACY_MILLIS
+ * before it was hashed is not recorded, and will be hashed again.
+ *
+ * It is stored as its header, then a count and, for each path in order,
+ * the path, size, modification time in nanoseconds, inode and hash.
+ * @author Tim Li
+ */
+class StatCache {
+
+    /** Header of the file. */
+    static final byte[] MAGIC = {'G', 'S', 'C', '1'};
+    /** File location. */
+    static final File FILE = new File(".gitlet/stat-cache");
+    /** Files modified this recently when hashed are not recorded. */
+    static final long RACY_MILLIS = 2000;
+    /** Name of the counter of files hashed because their stat changed. */
+    static final String HASHED = "stat cache files hashed";
+    /** Name of the counter of files whose hash came from the cache. */
+    static final String CLEAN = "stat cache files clean";
+
+    /** Entries, by path relative to the working directory. */
+    private Map<String, Entry> _entries;
+    /** Whether the entries differ from the file. */
+    private volatile boolean _changed;
+
+    /** An empty cache. */
+    StatCache() {
+        _entries = new ConcurrentHashMap<>();
+    }
+
+    /** Load the cache, or an empty one if it cannot be read.
+     * @return cache
+     */
+    static StatCache fromFile() {
+        StatCache cache = new StatCache();
+        if (!FILE.isFile()) {
+            return cache;
+        }
+        try {
+            Codec.Reader in = new Codec.Reader(Utils.readContents(FILE));
+            in.readHeader(MAGIC);
+            for (int i = in.readVarint(); i > 0; i -= 1) {
+                String path = in.readString();
+                cache._entries.put(path, new Entry(in.readLong(),
+                        in.readLong(), in.readLong(), in.readHash()));
+            }
+        } catch (IllegalArgumentException e) {
+            cache._entries.clear();
+        }
+        return cache;
+    }
+
+    /** Save the cache, if it has changed. */
+    void saveFile() {
+        if (!_changed) {
+            return;
+        }
+        String[] paths = _entries.keySet().toArray(new String[0]);
+        Arrays.sort(paths);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            Codec.writeVarint(out, paths.length);
+            for (String path : paths) {
+                Entry entry = _entries.get(path);
+                Codec.writeString(out, path);
+                out.writeLong(entry._size);
+                out.writeLong(entry._mtime);
+                out.writeLong(entry._inode);
+                Codec.writeHash(out, entry._hash);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Utils.writeContents(FILE, bytes.toByteArray());
+        _changed = false;
+    }
+
+    /** The blob hash of a working file, from the cache if its stat has
+     * not changed and by reading it otherwise. Safe to call from several
+     * threads at once.
+     * @param cwd working directory
+     * @param name path of the file
+     * @return hash
+     */
+    String hash(File cwd, String name) {
+        File file = Utils.join(cwd, name);
+        Entry stat = stat(file);
+        String hash = lookup(name, stat);
+        if (hash == null) {
+            Stats.add(HASHED, 1);
+            hash = ObjectStore.hash(file);
+            record(name, stat, hash);
+        }
+        return hash;
+    }
+
+    /** The blob hash of a working file, if its stat has not changed.
+     * @param cwd working directory
+     * @param name path of the file
+     * @return hash, or null if the file has to be read
+     */
+    String cached(File cwd, String name) {
+        return lookup(name, stat(Utils.join(cwd, name)));
+    }
+
+    /** The cached hash of NAME, if STAT matches.
+     * @param name path of the file
+     * @param stat its stat, or null if it could not be read
+     * @return hash, or null
+     */
+    private String lookup(String name, Entry stat) {
+        Entry cached = _entries.get(name);
+        if (cached == null || stat == null || !cached.sameStat(stat)) {
+            return null;
+        }
+        Stats.add(CLEAN, 1);
+        return cached._hash;
+    }
+
+    /** Record the hash of a working file that was just read or written.
+     * @param cwd working directory
+     * @param name path of the file
+     * @param hash its blob hash
+     */
+    void record(File cwd, String name, String hash) {
+        record(name, stat(Utils.join(cwd, name)), hash);
+    }
+
+    /** The cached hash of a working file, without checking its stat; for
+     * files known from elsewhere not to have changed since it was cached.
+     * @param name path of the file
+     * @return hash, or null if it is not cached
+     */
+    String known(String name) {
+        Entry cached = _entries.get(name);
+        if (cached == null) {
+            return null;
+        }
+        Stats.add(CLEAN, 1);
+        return cached._hash;
+    }
+
+    /** Forget the given paths and every path under them.
+     * @param paths paths of files or directories
+     */
+    void forget(Collection<String> paths) {
+        Set<String> gone = new HashSet<>(paths);
+        if (_entries.keySet().removeIf(name -> under(name, gone))) {
+            _changed = true;
+        }
+    }
+
+    /** Is NAME one of PATHS, or under one of them.
+     * @param name path of a file
+     * @param paths paths of files or directories
+     * @return yes or no
+     */
+    static boolean under(String name, Set<String> paths) {
+        for (int slash = name.length(); slash > 0;
+             slash = name.lastIndexOf('/', slash - 1)) {
+            if (paths.contains(name.substring(0, slash))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Forget every path not in PATHS.
+     * @param paths paths to keep
+     */
+    void retain(Collection<String> paths) {
+        if (_entries.keySet().retainAll(new HashSet<>(paths))) {
+            _changed = true;
+        }
+    }
+
+    /** Record STAT and HASH for NAME, unless the file is too new to be
+     * told apart from a later change.
+     * @param name path of the file
+     * @param stat its stat, or null if it could not be read
+     * @param hash its blob hash
+     */
+    private void record(String name, Entry stat, String hash) {
+        long racy = TimeUnit.MILLISECONDS.toNanos(
+                System.currentTimeMillis() - RACY_MILLIS);
+        if (stat == null || stat._mtime >= racy) {
+            if (_entries.remove(name) != null) {
+                _changed = true;
+            }
+            return;
+        }
+        _entries.put(name, new Entry(stat._size, stat._mtime, stat._inode,
+                hash));
+        _changed = true;
+    }
+
+    /** The stat of a file, without a hash.
+     * @param file file
+     * @return stat, or null if it cannot be read
+     */
+    private static Entry stat(File file) {
+        Path path = file.toPath();
+        try {
+            Map<String, Object> unix = Files.readAttributes(path,
+                    "unix:size,lastModifiedTime,ino",
+                    LinkOption.NOFOLLOW_LINKS);
+            return new Entry((Long) unix.get("size"),
+                    ((FileTime) unix.get("lastModifiedTime"))
+                    .to(TimeUnit.NANOSECONDS), (Long) unix.get("ino"),
+                    null);
+        } catch (UnsupportedOperationException e) {
+            try {
+                BasicFileAttributes basic = Files.readAttributes(path,
+                        BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                return new Entry(basic.size(), basic.lastModifiedTime()
+                        .to(TimeUnit.NANOSECONDS), 0, null);
+            } catch (IOException ioe) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** The stat of a file and its hash. */
+    private static class Entry {
+
+        /** Size in bytes. */
+        private final long _size;
+        /** Modification time in nanoseconds since the epoch. */
+        private final long _mtime;
+        /** Inode, or 0 where there is none. */
+        private final long _inode;
+        /** Blob hash, or null in a bare stat. */
+        private final String _hash;
+
+        /** An entry.
+         * @param size size in bytes
+         * @param mtime modification time in nanoseconds
+         * @param inode inode
+         * @param hash blob hash
+         */
+        Entry(long size, long mtime, long inode, String hash) {
+            _size = size;
+            _mtime = mtime;
+            _inode = inode;
+            _hash = hash;
+        }
+
+        /** Do this and STAT describe the same version of a file.
+         * @param stat another entry
+         * @return yes or no
+         */
+        boolean sameStat(Entry stat) {
+            return _size == stat._size && _mtime == stat._mtime
+                    && _inode == stat._inode;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package gitlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Named counters of what a command did, such as cache hits. They are
+ * always kept, and printed to standard error at the end of the command
+ * when Java is run with -Dgitlet.stats=true or the repository sets
+ * core.stats to true.
+ * @author Tim Li
+ */
+class Stats {
+
+    /** Whether the counters are printed. */
+    static final boolean ENABLED = Boolean.getBoolean("gitlet.stats");
+    /** Config key that turns printing on for a repository. */
+    static final String CONFIG = "core.stats";
+    /** The counters, by name. */
+    private static final Map<String, LongAdder> COUNTERS =
+            new ConcurrentHashMap<>();
+
+    /** Add to a counter.
+     * @param name name of the counter
+     * @param amount amount to add
+     */
+    static void add(String name, long amount) {
+        COUNTERS.computeIfAbsent(name, n -> new LongAdder()).add(amount);
+    }
+
+    /** Add the time since START to a counter, in microseconds.
+     * @param name name of the counter
+     * @param start System.nanoTime() at the start
+     */
+    static void addTime(String name, long start) {
+        add(name, (System.nanoTime() - start) / 1000);
+    }
+
+    /** Value of a counter.
+     * @param name name of the counter
+     * @return value, 0 if it was never added to
+     */
+    static long get(String name) {
+        LongAdder counter = COUNTERS.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /** Print every counter, sorted by name, if the counters are enabled. */
+    static void print() {
+        if (!ENABLED && !Boolean.parseBoolean(
+                Config.fromFile().get(CONFIG, "false").trim())) {
+            return;
+        }
+        for (Map.Entry<String, LongAdder> counter
+                : new TreeMap<>(COUNTERS).entrySet()) {
+            System.err.println(counter.getKey() + ": "
+                    + counter.getValue().sum());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/** A directory of a snapshot: the blobs of the files directly in it and
+ * the trees of its subdirectories, each by name. A tree is stored once
+ * under the hash of its encoding, so a commit that changes a few paths
+ * only writes the trees on the way to them and shares every other tree
+ * with its parent. An empty directory has no tree; it is the null hash.
+ *
+ * A tree is stored as its header followed by the files, then the
+ * subdirectories, each as a map of names to hashes sorted by name.
+ * Paths in a snapshot are relative to the working directory and use '/'
+ * between names.
+ * @author Tim Li
+ */
+class Tree {
+
+    /** Header of an encoded tree. */
+    static final byte[] MAGIC = {'G', 'T', 'R', '1'};
+
+    /** Blobs of the files in this directory, by name. */
+    private HashMap<String, String> _files;
+    /** Trees of the subdirectories, by name. */
+    private HashMap<String, String> _dirs;
+
+    /** An empty tree. */
+    Tree() {
+        _files = new HashMap<>();
+        _dirs = new HashMap<>();
+    }
+
+    /** Load a tree.
+     * @param hash tree hash
+     * @return tree
+     */
+    static Tree fromFile(String hash) {
+        try (InputStream in = ObjectStore.openTree(hash)) {
+            return decode(in.readAllBytes());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Store this tree, unless an equal one is already stored loose, in
+     * which case it is freshened for gc. A tree only found in a pack is
+     * written loose again, so gc sees it as new.
+     * @return its hash
+     */
+    String save() {
+        byte[] bytes = encode();
+        String hash = Utils.sha1(bytes);
+        if (!ObjectStore.freshen(ObjectStore.treeFile(hash))) {
+            ObjectStore.writeTree(hash, bytes);
+        }
+        return hash;
+    }
+
+    /** The bytes this tree is stored and hashed as.
+     * @return encoded tree
+     */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            Codec.writeMap(out, _files);
+            Codec.writeMap(out, _dirs);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Rebuild a tree from its stored bytes.
+     * @param bytes encoded tree
+     * @return tree
+     */
+    static Tree decode(byte[] bytes) {
+        Codec.Reader in = new Codec.Reader(bytes);
+        in.readHeader(MAGIC);
+        Tree tree = new Tree();
+        tree._files = in.readMap();
+        tree._dirs = in.readMap();
+        return tree;
+    }
+
+    /** Apply changes to a snapshot. Only the trees on the paths of the
+     * changes are read and rewritten.
+     * @param root root tree of the snapshot, or null if it is empty
+     * @param changes new blob of each changed path, or null to remove it
+     * @return root tree of the new snapshot, or null if it is empty
+     */
+    static String update(String root, Map<String, String> changes) {
+        Tree tree = root == null ? new Tree() : fromFile(root);
+        HashMap<String, HashMap<String, String>> below = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                below.computeIfAbsent(path.substring(0, slash),
+                        dir -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            } else if (change.getValue() == null) {
+                tree._files.remove(path);
+            } else {
+                tree._files.put(path, change.getValue());
+            }
+        }
+        for (Map.Entry<String, HashMap<String, String>> dir
+                : below.entrySet()) {
+            String hash = update(tree._dirs.get(dir.getKey()),
+                    dir.getValue());
+            if (hash == null) {
+                tree._dirs.remove(dir.getKey());
+            } else {
+                tree._dirs.put(dir.getKey(), hash);
+            }
+        }
+        if (tree._files.isEmpty() && tree._dirs.isEmpty()) {
+            return null;
+        }
+        return tree.save();
+    }
+
+    /** Every file of a snapshot.
+     * @param root root tree of the snapshot, or null if it is empty
+     * @return blob of each path
+     */
+    static HashMap<String, String> flatten(String root) {
+        HashMap<String, String> files = new HashMap<>();
+        if (root != null) {
+            flatten(root, "", files);
+        }
+        return files;
+    }
+
+    /** Add the files under a tree to FILES.
+     * @param hash tree hash
+     * @param prefix path of the tree, ending in '/' unless it is the root
+     * @param files blob of each path found so far
+     */
+    private static void flatten(String hash, String prefix,
+                                HashMap<String, String> files) {
+        Tree tree = fromFile(hash);
+        for (Map.Entry<String, String> file : tree._files.entrySet()) {
+            files.put(prefix + file.getKey(), file.getValue());
+        }
+        for (Map.Entry<String, String> dir : tree._dirs.entrySet()) {
+            flatten(dir.getValue(), prefix + dir.getKey() + "/", files);
+        }
+    }
+
+    /** Files getter.
+     * @return blobs of the files in this directory, by name
+     */
+    HashMap<String, String> getFiles() {
+        return _files;
+    }
+
+    /** Dirs getter.
+     * @return trees of the subdirectories, by name
+     */
+    HashMap<String, String> getDirs() {
+        return _dirs;
+    }
+}
@@ -0,0 +1,460 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/** The files of a working directory, listed and hashed on a pool of
+ * core.parallelism threads. Each directory is listed by its own task,
+ * from the directory cache unless it has changed, and directories
+ * ignored by .gitletignore are not entered. Hashes come from the stat
+ * cache where it can vouch for them, so only changed files are read.
+ * Results are always returned sorted by path, whatever order the threads
+ * finish in. Closing it saves the caches and stops the pool.
+ *
+ * When a Monitor is running, the files are instead those of the last
+ * command, updated with the paths journalled since, and the cached hash
+ * of a file not journalled is used without a stat. For that, a cached
+ * hash must stay right unless its path is journalled: journalled paths
+ * are forgotten by the cache, and after listing the whole tree only the
+ * hashes checked while doing so are kept. A journalled .gitletignore
+ * forces a scan of the whole tree, since it may change what is listed
+ * anywhere.
+ * @author Tim Li
+ */
+class WorkingTree implements AutoCloseable {
+
+    /** Name of the counter of files checkout left as they were. */
+    static final String UNCHANGED = "checkout files unchanged";
+    /** Name of the counter of files checkout wrote. */
+    static final String WRITTEN = "checkout files written";
+    /** Name of the counter of bytes checkout wrote. */
+    static final String BYTES = "checkout bytes written";
+    /** Name of the counter of files checkout deleted. */
+    static final String DELETED = "checkout files deleted";
+    /** Name of the counter of time spent comparing working files. */
+    static final String COMPARE_TIME = "checkout compare micros";
+    /** Name of the counter of time spent writing files. */
+    static final String WRITE_TIME = "checkout write micros";
+    /** Name of the counter of time spent deleting files. */
+    static final String DELETE_TIME = "checkout delete micros";
+
+    /** The working directory. */
+    private File _cwd;
+    /** Threads listing and hashing files. */
+    private ForkJoinPool _pool;
+    /** Hashes of files whose stat has not changed. */
+    private StatCache _cache;
+    /** Writes blobs to working files. */
+    private Materializer _materializer;
+    /** Listings of directories whose stat has not changed. */
+    private DirCache _dirs;
+    /** Untracked paths to leave out. */
+    private Ignore _ignore;
+    /** Paths kept in the working directory. */
+    private Sparse _sparse;
+    /** Directories listed, by path, when the whole tree is. */
+    private Set<String> _listed;
+    /** Paths of the working files, once listed. */
+    private List<String> _files;
+    /** What the monitor saw, or null if none is running. */
+    private Monitor.Changes _changes;
+    /** Journalled paths, or null if the monitor cannot vouch for any. */
+    private Set<String> _dirty;
+    /** Paths hashed through a stat. */
+    private Set<String> _checked;
+
+    /** The working directory CWD.
+     * @param cwd working directory
+     */
+    WorkingTree(File cwd) {
+        _cwd = cwd;
+        _pool = Config.fromFile().pool();
+        _cache = StatCache.fromFile();
+        _materializer = Materializer.fromConfig();
+        _dirs = DirCache.fromFile();
+        _ignore = Ignore.fromFile(cwd);
+        _sparse = Sparse.fromFile();
+        _listed = ConcurrentHashMap.newKeySet();
+        _checked = ConcurrentHashMap.newKeySet();
+        _changes = Monitor.changes();
+        if (_changes != null && _changes.dirty() != null
+                && !_changes.dirty().contains(Ignore.FILE)) {
+            _dirty = new HashSet<>(_changes.dirty());
+            _cache.forget(_dirty);
+        }
+    }
+
+    /** Paths of every regular file in the working directory outside
+     * .gitlet, relative to it, with '/' between names, leaving out those
+     * that are ignored or outside the sparse checkout.
+     * @return paths, sorted
+     */
+    List<String> files() {
+        if (_files == null && _dirty != null) {
+            _files = Collections.unmodifiableList(new ArrayList<>(
+                    update(_changes.files())));
+        } else if (_files == null) {
+            List<String> files = _pool.invoke(new Scan(""));
+            Collections.sort(files);
+            _dirs.retain(_listed);
+            _files = Collections.unmodifiableList(files);
+        }
+        return _files;
+    }
+
+    /** The working files, from those of the last command and the paths
+     * journalled since.
+     * @param last working files as of the last command
+     * @return paths, sorted
+     */
+    private TreeSet<String> update(List<String> last) {
+        TreeSet<String> files = new TreeSet<>(last);
+        Path root = _cwd.toPath();
+        for (String dirty : _dirty) {
+            files.remove(dirty);
+            files.subSet(dirty + "/", dirty + "0").clear();
+        }
+        for (String dirty : _dirty) {
+            Path path = root.resolve(dirty);
+            if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (!_ignore.ignored(dirty, false)
+                        && _sparse.includes(dirty)) {
+                    files.add(dirty);
+                }
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)
+                    && !_ignore.ignored(dirty, true)
+                    && _sparse.mayContain(dirty)) {
+                files.addAll(_pool.invoke(new Scan(dirty)));
+            }
+        }
+        return files;
+    }
+
+    /** The hash of a working file, if the stat cache or the monitor can
+     * vouch for it without reading the file.
+     * @param name path of the file
+     * @return hash, or null if the file has to be read
+     */
+    String cached(String name) {
+        String hash = unchanged(name);
+        return hash != null ? hash : _cache.cached(_cwd, name);
+    }
+
+    /** The hash of a working file, reading it only if need be.
+     * @param name path of the file
+     * @return hash
+     */
+    private String hash(String name) {
+        String hash = unchanged(name);
+        if (hash == null) {
+            _checked.add(name);
+            hash = _cache.hash(_cwd, name);
+        }
+        return hash;
+    }
+
+    /** The cached hash of a file the monitor has not seen change.
+     * @param name path of the file
+     * @return hash, or null if the monitor cannot vouch for it
+     */
+    private String unchanged(String name) {
+        if (_dirty == null || StatCache.under(name, _dirty)) {
+            return null;
+        }
+        return _cache.known(name);
+    }
+
+    /** Blob hashes of working files, computed in parallel.
+     * @param names paths of existing working files
+     * @return hash of each path, sorted by path
+     */
+    Map<String, String> hashes(Collection<String> names) {
+        return inPool(() -> names.parallelStream().collect(
+                Collectors.toMap(name -> name, this::hash,
+                    (a, b) -> a, TreeMap::new)));
+    }
+
+    /** Store working files as blobs, in parallel, skipping those the
+     * stat cache knows to be stored already.
+     * @param names paths of existing working files
+     * @return hash of each path, sorted by path
+     */
+    Map<String, String> store(Collection<String> names) {
+        return inPool(() -> names.parallelStream().collect(
+                Collectors.toMap(name -> name, this::storeOne,
+                    (a, b) -> a, TreeMap::new)));
+    }
+
+    /** Store one working file as a blob, unless the stat cache knows it
+     * to be stored already as a loose blob, which is then freshened for
+     * gc.
+     * @param name path of an existing working file
+     * @return its hash
+     */
+    private String storeOne(String name) {
+        String hash = cached(name);
+        if (hash == null
+                || !ObjectStore.freshen(ObjectStore.blobFile(hash))) {
+            hash = ObjectStore.storeBlob(Utils.join(_cwd, name));
+            _cache.record(_cwd, name, hash);
+        }
+        return hash;
+    }
+
+    /** Run TASK on the pool. If it fails, wait for the tasks it started
+     * to finish before passing on the failure.
+     * @param task task
+     * @param <T> type of its result
+     * @return its result
+     */
+    private <T> T inPool(Callable<T> task) {
+        try {
+            return _pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (ExecutionException e) {
+            _pool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.SECONDS);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Is an untracked file at PATH left out of the listing.
+     * @param path path of a file
+     * @return yes or no
+     */
+    boolean ignored(String path) {
+        return _ignore.ignored(path, false);
+    }
+
+    /** Check that moving from HEAD to TARGET overwrites no untracked
+     * file: one that HEAD does not track and TARGET does, unless it
+     * already holds the blob TARGET has for it.
+     * @param head current commit
+     * @param target commit being checked out
+     */
+    void checkUntracked(Commit head, Commit target) {
+        List<String> candidates = new ArrayList<>();
+        for (String file : files()) {
+            if (!head.containsFile(file) && target.containsFile(file)) {
+                candidates.add(file);
+            }
+        }
+        for (Map.Entry<String, String> file
+                : hashes(candidates).entrySet()) {
+            if (!file.getValue().equals(target.getHash(file.getKey()))) {
+                throw new GitletException("There is an untracked "
+                        + "file in the way; delete it, or add and"
+                        + " commit it first.");
+            }
+        }
+    }
+
+    /** Make the working files tracked by HEAD those of TARGET, writing
+     * only the files in the sparse checkout whose working copy does not
+     * already hold the blob TARGET has for them and deleting those TARGET
+     * does not track. The files and bytes written, and the time spent in
+     * each phase, are counted in Stats.
+     * @param head current commit
+     * @param target commit being checked out
+     */
+    void checkout(Commit head, Commit target) {
+        long start = System.nanoTime();
+        List<String> present = new ArrayList<>();
+        for (String name : target.getBlobs().keySet()) {
+            if (_sparse.includes(name) && Utils.join(_cwd, name).isFile()) {
+                present.add(name);
+            }
+        }
+        Map<String, String> hashes = hashes(present);
+        List<String> writes = new ArrayList<>();
+        for (Map.Entry<String, String> entry
+                : target.getBlobs().entrySet()) {
+            if (!_sparse.includes(entry.getKey())) {
+                continue;
+            } else if (entry.getValue().equals(hashes.get(entry.getKey()))) {
+                Stats.add(UNCHANGED, 1);
+            } else {
+                writes.add(entry.getKey());
+            }
+        }
+        Stats.addTime(COMPARE_TIME, start);
+
+        start = System.nanoTime();
+        writeAll(writes, target);
+        Stats.addTime(WRITE_TIME, start);
+
+        start = System.nanoTime();
+        for (String name : head.getBlobs().keySet()) {
+            if (!target.containsFile(name)) {
+                Gitlet.deleteFile(_cwd, name);
+                Stats.add(DELETED, 1);
+            }
+        }
+        Stats.addTime(DELETE_TIME, start);
+    }
+
+    /** Narrow or widen the sparse checkout to SLICE: write the files of
+     * HEAD it brings in that are missing, and delete those it leaves out,
+     * provided none of them has local changes.
+     * @param head current commit
+     * @param slice new sparse checkout
+     */
+    void sparsen(Commit head, Sparse slice) {
+        List<String> leaving = new ArrayList<>();
+        List<String> arriving = new ArrayList<>();
+        for (String name : head.getBlobs().keySet()) {
+            boolean exists = Utils.join(_cwd, name).isFile();
+            if (_sparse.includes(name) && !slice.includes(name) && exists) {
+                leaving.add(name);
+            } else if (!_sparse.includes(name) && slice.includes(name)
+                    && !exists) {
+                arriving.add(name);
+            }
+        }
+        for (Map.Entry<String, String> file
+                : hashes(leaving).entrySet()) {
+            if (!file.getValue().equals(head.getHash(file.getKey()))) {
+                throw new GitletException("There are local changes "
+                        + "outside the new sparse checkout; commit them "
+                        + "first.");
+            }
+        }
+        for (String name : leaving) {
+            Gitlet.deleteFile(_cwd, name);
+        }
+        writeAll(arriving, head);
+        _sparse = slice;
+        _files = null;
+        _dirty = null;
+        _changes = null;
+        Monitor.STATE.delete();
+    }
+
+    /** Write the blobs COMMIT has for NAMES on the pool. After the first
+     * write that fails, no other is started.
+     * @param names paths of files
+     * @param commit commit tracking them
+     */
+    private void writeAll(List<String> names, Commit commit) {
+        AtomicBoolean failed = new AtomicBoolean();
+        inPool(() -> {
+            names.parallelStream().forEach(name -> {
+                if (failed.get()) {
+                    return;
+                }
+                try {
+                    write(name, commit.getHash(name));
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                    throw e;
+                }
+            });
+            return null;
+        });
+    }
+
+    /** Write a blob to a working file and record it in the stat cache.
+     * @param name path of the file
+     * @param hash blob hash
+     */
+    private void write(String name, String hash) {
+        File file = Utils.join(_cwd, name);
+        _materializer.write(hash, file);
+        _cache.record(_cwd, name, hash);
+        Stats.add(WRITTEN, 1);
+        Stats.add(BYTES, file.length());
+    }
+
+    /** The stat cache used for hashing.
+     * @return cache
+     */
+    StatCache cache() {
+        return _cache;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (_changes != null && (_dirty != null || _files != null)) {
+                if (_dirty == null) {
+                    _cache.retain(_checked);
+                }
+                _changes.save(files());
+            }
+            _cache.saveFile();
+            _dirs.saveFile();
+        } finally {
+            _pool.shutdown();
+        }
+    }
+
+    /** Lists one directory and forks a task for each subdirectory. */
+    private class Scan extends RecursiveTask<List<String>> {
+
+        /** Path of the directory to list, "" for the root. */
+        private String _dir;
+
+        /** Listing of DIR.
+         * @param dir path of the directory, relative to the root
+         */
+        Scan(String dir) {
+            _dir = dir;
+        }
+
+        @Override
+        protected List<String> compute() {
+            Path root = _cwd.toPath();
+            String prefix = _dir.isEmpty() ? "" : _dir + "/";
+            List<List<String>> listing = _dirs.list(root,
+                    root.resolve(_dir));
+            _listed.add(_dir);
+            List<String> files = new ArrayList<>();
+            for (String name : listing.get(0)) {
+                if (!_ignore.matches(prefix + name, false)
+                        && _sparse.includes(prefix + name)) {
+                    files.add(prefix + name);
+                }
+            }
+            List<Scan> subdirs = new ArrayList<>();
+            for (String name : listing.get(1)) {
+                String dir = prefix + name;
+                if ((_dir.isEmpty()
+                        && name.equals(Gitlet.GITLET_FOLDER.getName()))
+                        || _ignore.matches(dir, true)
+                        || !_sparse.mayContain(dir)) {
+                    continue;
+                }
+                Scan scan = new Scan(dir);
+                scan.fork();
+                subdirs.add(scan);
+            }
+            for (Scan scan : subdirs) {
+                files.addAll(scan.join());
+            }
+            return files;
+        }
+    }
+}